@@ -1,18 +1,33 @@
 package client;
 
+import data.BatchArchive;
 import data.DataFileServer;
 import data.DataReader;
+import data.SocketPool;
 import io.socket.client.Ack;
 import io.socket.client.IO;
 import io.socket.client.Socket;
 import io.socket.emitter.Emitter;
 import java.awt.Component;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
 import java.io.File;
 import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.swing.JFileChooser;
+import javax.swing.JScrollBar;
 import javax.swing.JTable;
+import javax.swing.SwingUtilities;
 import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.DefaultTableModel;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import swing.CellEditor;
@@ -26,10 +41,24 @@ import swing.CellEditorFile;
 public class Client extends javax.swing.JFrame {
     
     private final int SERVER_PORT = 9999;  
+    private final int UPLOAD_WINDOW = DataReader.DEFAULT_WINDOW_SIZE;          // Chunks waiting for an ack per upload
+    private final int UPLOAD_STREAMS = DataReader.DEFAULT_STREAMS;              // Connections a single upload may use
+    private final int DOWNLOAD_STREAMS = DataFileServer.DEFAULT_STREAMS;        // Connections a single download may use
+    private final int UPLOAD_ACTIVE = UploadScheduler.DEFAULT_ACTIVE;          // Uploads sent at the same time, the rest wait in the queue
+    private final int FILE_PAGE = 100;                                          // Files asked for per page of the server catalog
     private final DefaultTableModel defaultTableModel;
     private final DefaultTableModel defaultTableModelFile;
+    private final Set<Long> shownFiles = ConcurrentHashMap.newKeySet();        // A file announced by new_file may come again in a later page
+    private final UploadScheduler uploads = new UploadScheduler(UPLOAD_ACTIVE, new UploadScheduler.Starter() {
+        @Override
+        public void start(DataReader reader) throws Exception {
+            upload(reader);
+        }
+    });
     private Socket client;
     private String IP = "localhost";
+    private String nextPage;                                                    // Cursor of the next catalog page, null once all are shown
+    private boolean loadingPage;
     
     /**
      * Creates new form Client and initializes the components.
@@ -65,6 +94,15 @@ public class Client extends javax.swing.JFrame {
             }
         });
         tableFile.getColumnModel().getColumn(4).setCellEditor(new CellEditorFile());
+        jScrollPane2.getVerticalScrollBar().addAdjustmentListener(new AdjustmentListener() {  // Ask for the next page once the bottom of the SERVER FILES table shows
+            @Override
+            public void adjustmentValueChanged(AdjustmentEvent e) {
+                JScrollBar bar = (JScrollBar) e.getAdjustable();
+                if (bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - tableFile.getRowHeight() * 5) {
+                    loadNextPage();
+                }
+            }
+        });
     }
 
     @SuppressWarnings("unchecked")
@@ -236,33 +274,31 @@ public class Client extends javax.swing.JFrame {
                     }
                 });
                 
+                client.on(Socket.EVENT_RECONNECT, new Emitter.Listener() {      // A new connection has no name on the server yet
+                    @Override
+                    public void call(Object... os) {
+                        client.emit("set_user", nameTextField.getText().trim());
+                    }
+                });
+                
                 client.on("new_file", new Emitter.Listener() {                  // Event listener to handle new_file event from the server
                     @Override
                     public void call(Object... os) {
-                        //  Add new File
-                        try {                                                   // Try adding new file information to the table
-                            addFile(new DataFileServer((JSONObject) os[0], table, client));
-                        } catch (JSONException e) {
-                            e.printStackTrace();
-                        }
+                        addFiles(new JSONArray().put(os[0]), null);             // Add the new file to the table
                     }
                 });
                 
-                client.open();                                                  // Open the socket connection
-                String userName = nameTextField.getText().trim();               // Set the username and request the list of files from the server
-                client.emit("set_user", userName);                              // Emitting set_user event to socket
-                client.emit("request", "list_file", new Ack() {                 // Note: Takes eventname(s), arg(s), and ack
+                client.on("new_files", new Emitter.Listener() {                 // A batch upload is announced once for all its files
                     @Override
                     public void call(Object... os) {
-                        try {                                                   // Try adding each file to the table
-                            for (Object o : os) {
-                                addFile(new DataFileServer((JSONObject) o, table, client));
-                            }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
+                        addFiles((JSONArray) os[0], null);
                     }
                 });
+                
+                client.open();                                                  // Open the socket connection
+                String userName = nameTextField.getText().trim();               // Set the username and request the list of files from the server
+                client.emit("set_user", userName);                              // Emitting set_user event to socket
+                requestPage(null);                                              // The rest of the catalog is fetched as the table is scrolled
             } catch (URISyntaxException e) {
                 System.err.println(e);
             }
@@ -279,28 +315,212 @@ public class Client extends javax.swing.JFrame {
     private void fileSelectButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_fileSelectButtonActionPerformed
         JFileChooser fileChooser = new JFileChooser();                          // Create a file chooser with multi-selection enabled
         fileChooser.setMultiSelectionEnabled(true);
+        fileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);  // A picked directory is uploaded with everything under it
         int opt = fileChooser.showOpenDialog(this);
         
         if (opt == JFileChooser.APPROVE_OPTION) {
             File[] files = fileChooser.getSelectedFiles();
-            for (File file : files) {
-                try {                                                           // Try creating a DataReader for each selected file and add it to the table
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    queueUploads(files);
+                }
+            }, "upload-walk").start();                                          // Walking a large directory must not freeze the window
+        }
+    }//GEN-LAST:event_fileSelectButtonActionPerformed
+    /**
+     * Walks the picked directories and queues every file for upload, listed on the server
+     * under its path relative to the parent of the picked directory. Small files are grouped
+     * into batches and queued first, each one is packed once its upload starts.
+     *
+     * @param selected the files and directories picked by the user
+     */
+    private void queueUploads(File[] selected) {
+        List<File> files = new ArrayList<>();
+        Map<File, String> names = new HashMap<>();
+        Set<File> picked = new HashSet<>();
+        for (File file : selected) {
+            if (file.isDirectory()) {
+                Path base = file.getAbsoluteFile().toPath().getParent();
+                for (File found : DirectoryWalk.walk(file)) {
+                    Path path = found.getAbsoluteFile().toPath();
+                    files.add(found);
+                    names.put(found, (base == null ? path : base.relativize(path)).toString().replace(File.separatorChar, '/'));
+                }
+            } else if (file.isFile()) {
+                files.add(file);
+                names.put(file, file.getName());
+                picked.add(file);
+            }
+        }
+        List<File> small = new ArrayList<>();
+        for (File file : files) {
+            if (BatchArchive.isSmall(file)) {
+                small.add(file);
+            }
+        }
+        if (small.size() < BatchArchive.MIN_FILES) {
+            small.clear();                                                      // Too few to be worth a batch, send them one by one
+        }
+        for (List<File> batch : BatchArchive.split(small)) {
+            List<String> batchNames = new ArrayList<>();
+            for (File file : batch) {
+                batchNames.add(names.get(file));
+            }
+            queue(new DataReader(new BatchArchive(batch, batchNames), table), true);  // Packed when it starts, before large files
+        }
+        Set<File> batched = new HashSet<>(small);
+        for (File file : files) {
+            if (!batched.contains(file)) {
+                try {                                                           // The file is only opened once its upload starts
                     DataReader reader = new DataReader(file, table);
-                    defaultTableModel.addRow(reader.toRowTable(table.getRowCount() + 1));   // Process changes to table
-                    reader.startSend(client);                                   // File sending can be started from the client
+                    reader.setFileName(names.get(file));
+                    queue(reader, picked.contains(file));
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             }
         }
-    }//GEN-LAST:event_fileSelectButtonActionPerformed
+    }
+
+    /**
+     * Adds an upload to the table and queues it, it starts once fewer than UPLOAD_ACTIVE
+     * uploads are being sent.
+     *
+     * @param reader the DataReader of the file to send
+     * @param picked true if the user picked the file itself
+     */
+    private void queue(DataReader reader, boolean picked) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                reader.setWindowSize(UPLOAD_WINDOW);
+                defaultTableModel.addRow(reader.toRowTable(table.getRowCount() + 1));
+                uploads.submit(reader, picked);
+            }
+        });
+    }
+
+    /**
+     * Starts sending a queued upload on connections of its own.
+     *
+     * @param reader the DataReader of the file to send
+     * @throws JSONException if a JSON error occurs
+     */
+    private void upload(DataReader reader) throws JSONException {
+        SocketPool sockets = new SocketPool("http://" + IP + ":" + SERVER_PORT, client, UPLOAD_STREAMS);
+        sockets.setUserName(nameTextField.getText().trim());                    // Extra connections show up under the same user
+        reader.startSend(sockets);                                              // File sending can be started from the client
+    }
+
+    /**
+     * Creates the sockets for one download, connections besides the primary one are only
+     * opened once a large file is saved.
+     *
+     * @return the socket pool for the download
+     */
+    private SocketPool downloadSockets() {
+        SocketPool sockets = new SocketPool("http://" + IP + ":" + SERVER_PORT, client, DOWNLOAD_STREAMS);
+        sockets.setUserName(nameTextField.getText().trim());
+        return sockets;
+    }
+
+    /**
+     * Asks the server for the page of its catalog after the given cursor, oldest files first.
+     *
+     * @param cursor the cursor the previous page returned, null for the first page
+     */
+    private void requestPage(String cursor) {
+        synchronized (this) {
+            loadingPage = true;
+        }
+        try {
+            JSONObject request = new JSONObject();
+            request.put("sort", "date");
+            request.put("limit", FILE_PAGE);
+            if (cursor != null) {
+                request.put("cursor", cursor);
+            }
+            client.emit("list_files", request, new Ack() {
+                @Override
+                public void call(Object... os) {
+                    JSONArray files;
+                    String next;
+                    try {
+                        JSONObject page = (JSONObject) os[0];
+                        files = page.getJSONArray("files");
+                        next = page.isNull("next") ? null : page.getString("next");
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        files = new JSONArray();
+                        next = null;
+                    }
+                    final String cursor = next;
+                    addFiles(files, new Runnable() {                            // The next page is only asked for once this one is shown
+                        @Override
+                        public void run() {
+                            synchronized (Client.this) {
+                                nextPage = cursor;
+                                loadingPage = false;
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Requests the next page of the server catalog unless one is on its way or all are shown.
+     */
+    private void loadNextPage() {
+        String cursor;
+        synchronized (this) {
+            if (loadingPage || nextPage == null) {
+                return;
+            }
+            cursor = nextPage;
+        }
+        requestPage(cursor);
+    }
+
+    /**
+     * Adds files the server listed or announced to the server files table. Socket.io calls
+     * back on its own threads, so the rows are created on the event dispatch thread.
+     *
+     * @param files the files as JSON objects
+     * @param after run on the event dispatch thread once they are added, or null
+     */
+    private void addFiles(JSONArray files, Runnable after) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < files.length(); i++) {
+                    try {
+                        addFile(new DataFileServer(files.getJSONObject(i), table, downloadSockets()));
+                    } catch (JSONException e) {
+                        e.printStackTrace();
+                    }
+                }
+                if (after != null) {
+                    after.run();
+                }
+            }
+        });
+    }
+
     /**
-     * Adds a DataFileServer object to the server files table.
+     * Adds a DataFileServer object to the server files table, unless it is already shown.
+     * Must be called on the event dispatch thread.
      *
      * @param data the DataFileServer object to be added to the table
      */
     private void addFile(DataFileServer data) {
-        defaultTableModelFile.addRow(data.toTableRow(tableFile.getRowCount() + 1));
+        if (shownFiles.add(data.getFileID())) {
+            defaultTableModelFile.addRow(data.toTableRow(tableFile.getRowCount() + 1));
+        }
     }
     
     /* Create and display the form */
@@ -0,0 +1,61 @@
+package client;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * DirectoryWalk lists the files under a directory on the common ForkJoinPool. Every
+ * subdirectory is listed by a task of its own, so a wide tree on a slow disk or network
+ * share is listed by several threads at once. Links to directories are not followed, they
+ * could lead back up the tree.
+ */
+public class DirectoryWalk extends RecursiveTask<List<File>> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final File directory;
+
+    /**
+     * @param directory the directory to list
+     */
+    public DirectoryWalk(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Lists every file under a directory.
+     *
+     * @param directory the directory to list
+     * @return the files, in no particular order
+     */
+    public static List<File> walk(File directory) {
+        return ForkJoinPool.commonPool().invoke(new DirectoryWalk(directory));
+    }
+
+    @Override
+    protected List<File> compute() {
+        List<File> files = new ArrayList<>();
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return files;                                                       // Not readable, skipped like an empty directory
+        }
+        List<DirectoryWalk> subdirectories = new ArrayList<>();
+        for (File child : children) {
+            if (child.isDirectory() && !Files.isSymbolicLink(child.toPath())) {
+                DirectoryWalk task = new DirectoryWalk(child);
+                task.fork();
+                subdirectories.add(task);
+            } else if (child.isFile()) {
+                files.add(child);
+            }
+        }
+        for (DirectoryWalk task : subdirectories) {
+            files.addAll(task.join());
+        }
+        return files;
+    }
+}
@@ -0,0 +1,114 @@
+package client;
+
+import data.DataReader;
+import java.util.PriorityQueue;
+
+/**
+ * UploadScheduler starts queued uploads a few at a time, so picking hundreds of files opens
+ * a handful of them and their connections instead of all at once. The next upload starts
+ * when one ends. Files the user picked go before files found in picked directories and
+ * smaller files before larger ones, so small files are not stuck behind a large one.
+ * Otherwise uploads start in the order they were queued.
+ */
+public class UploadScheduler {
+
+    /**
+     * Number of uploads sent at the same time.
+     */
+    public static final int DEFAULT_ACTIVE = 4;
+
+    /**
+     * Starts an upload once it leaves the queue.
+     */
+    public interface Starter {
+
+        /**
+         * @param reader the upload to start
+         * @throws Exception if the upload cannot be started
+         */
+        void start(DataReader reader) throws Exception;
+    }
+
+    private final PriorityQueue<Queued> queue = new PriorityQueue<>();
+    private final Starter starter;
+    private final int maxActive;
+    private int active;
+    private long sequence;                                                      // Keeps the queue order among equal uploads
+
+    /**
+     * @param maxActive the most uploads sent at the same time
+     * @param starter   starts an upload once it leaves the queue
+     */
+    public UploadScheduler(int maxActive, Starter starter) {
+        this.maxActive = Math.max(1, maxActive);
+        this.starter = starter;
+    }
+
+    public synchronized int getActive() {
+        return active;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Queues an upload, it starts right away if fewer than the maximum are being sent.
+     *
+     * @param reader the upload, its file is not opened before it starts
+     * @param picked true if the user picked the file, false if it was found in a picked directory
+     */
+    public synchronized void submit(DataReader reader, boolean picked) {
+        reader.setOnDone(new Runnable() {
+            @Override
+            public void run() {
+                ended();
+            }
+        });
+        queue.add(new Queued(reader, picked, sequence++));
+        startNext();
+    }
+
+    private synchronized void ended() {
+        active--;
+        startNext();
+    }
+
+    private void startNext() {
+        while (active < maxActive && !queue.isEmpty()) {
+            DataReader reader = queue.poll().reader;
+            active++;
+            try {
+                starter.start(reader);
+            } catch (Exception e) {
+                active--;                                                       // Never started, it will not end either
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * An upload waiting in the queue.
+     */
+    private static class Queued implements Comparable<Queued> {
+
+        private final DataReader reader;
+        private final boolean picked;
+        private final long sequence;
+
+        private Queued(DataReader reader, boolean picked, long sequence) {
+            this.reader = reader;
+            this.picked = picked;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Queued other) {
+            if (picked != other.picked) {
+                return picked ? -1 : 1;
+            }
+            int bySize = Long.compare(reader.getFileSize(), other.reader.getFileSize());
+            return bySize != 0 ? bySize : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class packs many small files into one archive that is uploaded as a single batch,
+ * so they share one handshake, one ack chain and one file on the server instead of one
+ * each. The server unpacks the archive into its catalog once the upload is complete.
+ * <pre>
+ * magic "CBAT" (4 bytes) | file count (4 bytes) |
+ * per file: name length (2 bytes) | name (UTF-8) | size (8 bytes) | content
+ * </pre>
+ * The files are read one at a time, so packing never holds more than one of them open.
+ * An instance is a batch waiting for upload, its archive is only written once the upload
+ * starts, so batches in the upload queue take no disk space.
+ */
+public class BatchArchive {
+
+    public static final int MAGIC = 0x43424154;
+    public static final long MAX_FILE_SIZE = 1024 * 1024;                       // Larger files are uploaded on their own
+    public static final int MIN_FILES = 8;                                      // Fewer small files are not worth a batch
+    public static final int MAX_FILES = 10000;
+    public static final long MAX_BYTES = 256L * 1024 * 1024;
+    private static final int MAX_NAME_LENGTH = 0xFFFF;
+
+    private final List<File> files;
+    private final List<String> names;
+
+    /**
+     * @param files the files of the batch
+     * @param names the names to list them under, relative paths included, in the same order
+     */
+    public BatchArchive(List<File> files, List<String> names) {
+        this.files = files;
+        this.names = names;
+    }
+
+    public int getCount() {
+        return files.size();
+    }
+
+    /**
+     * @return the size the archive will have, from the current sizes of the files
+     */
+    public long getSize() {
+        long size = 8;
+        for (int i = 0; i < files.size(); i++) {
+            size += 10 + names.get(i).getBytes(StandardCharsets.UTF_8).length + files.get(i).length();
+        }
+        return size;
+    }
+
+    /**
+     * Writes the archive to a temporary file, the uploader deletes it once it is sent.
+     *
+     * @return the archive
+     * @throws IOException if a file cannot be read or the archive written
+     */
+    public File pack() throws IOException {
+        File archive = File.createTempFile("batch-", ".cbat");
+        try {
+            pack(files, names, archive);
+        } catch (IOException e) {
+            archive.delete();
+            throw e;
+        }
+        return archive;
+    }
+
+    /**
+     * @param file a file picked for upload
+     * @return true if the file is small enough to go into a batch
+     */
+    public static boolean isSmall(File file) {
+        return file.isFile() && file.length() <= MAX_FILE_SIZE;
+    }
+
+    /**
+     * Splits small files into batches of at most MAX_FILES files and about MAX_BYTES.
+     *
+     * @param files the small files
+     * @return the files of each batch
+     */
+    public static List<List<File>> split(List<File> files) {
+        List<List<File>> batches = new ArrayList<>();
+        List<File> batch = new ArrayList<>();
+        long bytes = 0;
+        for (File file : files) {
+            if (!batch.isEmpty() && (batch.size() == MAX_FILES || bytes + file.length() > MAX_BYTES)) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                bytes = 0;
+            }
+            batch.add(file);
+            bytes += file.length();
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * Writes the archive of a batch.
+     *
+     * @param files  the files of the batch
+     * @param target the archive to write
+     * @throws IOException if a file cannot be read or the archive written
+     */
+    public static void pack(List<File> files, File target) throws IOException {
+        List<String> names = new ArrayList<>();
+        for (File file : files) {
+            names.add(file.getName());
+        }
+        pack(files, names, target);
+    }
+
+    /**
+     * Writes the archive of a batch, listing each file under the name given for it.
+     *
+     * @param files  the files of the batch
+     * @param names  the names to list them under, relative paths included, in the same order
+     * @param target the archive to write
+     * @throws IOException if a file cannot be read or the archive written
+     */
+    public static void pack(List<File> files, List<String> names, File target) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target), 1024 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+                if (name.length > MAX_NAME_LENGTH) {
+                    throw new IOException("File name too long: " + names.get(i));
+                }
+                try (InputStream in = new FileInputStream(file)) {
+                    long size = file.length();                                  // Sizes the entry, the file may not change while packed
+                    out.writeShort(name.length);
+                    out.write(name);
+                    out.writeLong(size);
+                    long copied = 0;
+                    while (copied < size) {
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, size - copied));
+                        if (read < 0) {
+                            throw new IOException("File " + file + " is shorter than " + size + " bytes");
+                        }
+                        out.write(buffer, 0, read);
+                        copied += read;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package data;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * ChunkFrame builds the binary frame one chunk of an upload is sent in.
+ * The frame starts with a fixed header, big endian, followed by the payload:
+ * fileID (8 bytes), offset (8 bytes), length (4 bytes), flags (1 byte), checksum (4 bytes),
+ * raw length (4 bytes), payload (length bytes). With FLAG_DEFLATE the payload is compressed
+ * and holds raw length bytes of the file, otherwise the raw length is the length.
+ * It is emitted as a single binary attachment of the "chunk" event. The checksum is the CRC32
+ * of the payload, a server that finds it does not match answers false and RESEND, and only
+ * that chunk is sent again.
+ */
+public class ChunkFrame {
+
+    public static final String EVENT = "chunk";
+    public static final String RESEND = "resend";                               // Second ack value of a chunk that arrived damaged
+    public static final int HEADER_SIZE = 29;
+    public static final int FLAG_FINISH = 1;
+    public static final int FLAG_CHECKSUM = 2;
+    public static final int FLAG_DEFLATE = 4;
+
+    /**
+     * Allocates a frame and writes its header, the payload is left for the caller to fill
+     * from HEADER_SIZE on, so the file can be read straight into the frame.
+     *
+     * @param fileID the ID of the file
+     * @param offset the position of the payload in the file
+     * @param length the number of payload bytes
+     * @param flags  the flags of the chunk
+     * @return the frame with room for the payload
+     */
+    public static byte[] allocate(long fileID, long offset, int length, int flags) {
+        byte[] frame = new byte[HEADER_SIZE + length];
+        ByteBuffer header = ByteBuffer.wrap(frame);
+        header.putLong(fileID);
+        header.putLong(offset);
+        header.putInt(length);
+        header.put((byte) flags);
+        header.putInt(0);                                                       // Checksum, filled in by seal
+        header.putInt(length);
+        return frame;
+    }
+
+    /**
+     * Builds the frame of a compressed chunk.
+     *
+     * @param fileID    the ID of the file
+     * @param offset    the position of the chunk in the file
+     * @param packed    the compressed chunk
+     * @param rawLength the number of file bytes the chunk holds
+     * @return the frame, not sealed yet
+     */
+    public static byte[] compressed(long fileID, long offset, byte[] packed, int rawLength) {
+        byte[] frame = allocate(fileID, offset, packed.length, FLAG_DEFLATE);
+        ByteBuffer.wrap(frame).putInt(25, rawLength);
+        System.arraycopy(packed, 0, frame, HEADER_SIZE, packed.length);
+        return frame;
+    }
+
+    /**
+     * Computes the checksum of the payload once it is filled in and marks the frame as
+     * carrying one.
+     *
+     * @param frame the frame with its payload filled in
+     * @return the frame
+     */
+    public static byte[] seal(byte[] frame) {
+        CRC32 crc = new CRC32();
+        crc.update(frame, HEADER_SIZE, frame.length - HEADER_SIZE);
+        frame[20] |= FLAG_CHECKSUM;
+        ByteBuffer.wrap(frame).putInt(21, (int) crc.getValue());
+        return frame;
+    }
+
+    /**
+     * @param os the ack arguments sent by the server
+     * @return true if the server found the chunk damaged and it should be sent again
+     */
+    public static boolean isResend(Object... os) {
+        return os.length > 1 && Boolean.FALSE.equals(os[0]) && RESEND.equals(os[1]);
+    }
+
+    /**
+     * @param fileID the ID of the file
+     * @return a frame without payload telling the server the upload is complete
+     */
+    public static byte[] finish(long fileID) {
+        return allocate(fileID, 0, 0, FLAG_FINISH);
+    }
+}
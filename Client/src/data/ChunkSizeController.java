@@ -0,0 +1,70 @@
+package data;
+
+/**
+ * ChunkSizeController picks the size of the next chunk of a transfer from the ack latency
+ * of the previous ones. The size grows while the latency stays flat and shrinks when the
+ * latency rises, always staying between the minimum and the negotiated maximum.
+ */
+public class ChunkSizeController {
+
+    public static final int MIN_CHUNK_SIZE = 2000;                              // The old fixed chunk size, never go below it
+    public static final int INITIAL_CHUNK_SIZE = 32 * 1024;
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final int SAMPLES_PER_STEP = 8;                              // Acks averaged before the size is changed
+
+    private int chunkSize;
+    private int maxChunkSize;
+    private long baseline;
+    private long sum;
+    private int samples;
+
+    public ChunkSizeController() {
+        this.chunkSize = INITIAL_CHUNK_SIZE;
+        this.maxChunkSize = MAX_CHUNK_SIZE;
+    }
+
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    public synchronized int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    /**
+     * Lowers the upper bound to the value the server accepted during the handshake.
+     *
+     * @param maxChunkSize the largest chunk the other side accepts
+     */
+    public synchronized void setMaxChunkSize(int maxChunkSize) {
+        this.maxChunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, maxChunkSize));
+        this.chunkSize = Math.min(chunkSize, this.maxChunkSize);
+    }
+
+    /**
+     * Records the latency of one acknowledged chunk and adjusts the chunk size once
+     * enough samples have been collected.
+     *
+     * @param nanos the time between sending the chunk and receiving its ack
+     */
+    public synchronized void onAck(long nanos) {
+        sum += nanos;
+        samples++;
+        if (samples < SAMPLES_PER_STEP) {
+            return;
+        }
+        long average = sum / samples;
+        sum = 0;
+        samples = 0;
+        if (baseline == 0 || average < baseline) {
+            baseline = average;
+        } else {
+            baseline += (average - baseline) / 16;                              // Let the baseline follow a slower route slowly
+        }
+        if (average <= baseline + baseline / 4) {                               // Latency is flat, the link has room for more
+            chunkSize = Math.min(maxChunkSize, chunkSize * 2);
+        } else if (average > baseline * 2) {                                    // Latency rises, chunks queue up somewhere
+            chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize / 2);
+        }
+    }
+}
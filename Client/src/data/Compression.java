@@ -0,0 +1,155 @@
+package data;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class compresses chunks for the wire and for storage with raw deflate at its fastest
+ * level, which keeps up with the disk for text, logs and CSV. Content that is compressed
+ * already is recognized from the magic bytes or the byte entropy of a sample of the file,
+ * so it is sent as it is instead of spending CPU on it. Deflaters are kept per thread,
+ * creating one allocates native memory.
+ */
+public class Compression {
+
+    public static final String DEFLATE = "deflate";
+    public static final int SAMPLE_SIZE = 64 * 1024;                            // Start of a file used to decide if it is worth compressing
+    private static final double MAX_ENTROPY = 7.5;                              // Bits per byte above which data looks random
+    private static final byte[][] MAGIC = {                                     // Headers of formats that are compressed already
+        {0x1F, (byte) 0x8B},                                    // gzip
+        {0x50, 0x4B, 0x03, 0x04},                               // zip, jar, docx, apk
+        {(byte) 0x89, 0x50, 0x4E, 0x47},                        // png
+        {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF},                // jpeg
+        {0x47, 0x49, 0x46, 0x38},                               // gif
+        {0x37, 0x7A, (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C},     // 7z
+        {(byte) 0xFD, 0x37, 0x7A, 0x58, 0x5A, 0x00},            // xz
+        {0x42, 0x5A, 0x68},                                     // bzip2
+        {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD},                 // zstd
+        {0x04, 0x22, 0x4D, 0x18},                               // lz4
+        {0x52, 0x61, 0x72, 0x21},                               // rar
+        {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3},                 // mkv, webm
+        {0x4F, 0x67, 0x67, 0x53},                               // ogg
+        {0x66, 0x4C, 0x61, 0x43},                               // flac
+        {0x49, 0x44, 0x33}                                      // mp3
+    };
+
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+    private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    /**
+     * Decides from the start of a file if compressing it is worth it.
+     * @param sample the array holding the start of the file
+     * @param start the index of the first byte of the file
+     * @param length the number of bytes in the sample
+     * @return false for known compressed formats and data that looks random
+     */
+    public static boolean isCompressible(byte[] sample, int start, int length) {
+        if (length <= 0) {
+            return false;
+        }
+        for (byte[] magic : MAGIC) {
+            if (startsWith(sample, start, length, magic, 0)) {
+                return false;
+            }
+        }
+        if (startsWith(sample, start, length, new byte[]{0x66, 0x74, 0x79, 0x70}, 4)) { // mp4 and mov, type after the first box size
+            return false;
+        }
+        int[] counts = new int[256];
+        for (int i = start; i < start + length; i++) {
+            counts[sample[i] & 0xFF]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2) < MAX_ENTROPY;
+    }
+
+    private static boolean startsWith(byte[] sample, int start, int length, byte[] magic, int at) {
+        if (length < at + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (sample[start + at + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compresses part of an array.
+     * @param data the array holding the data
+     * @param start the index of the first byte to compress
+     * @param length the number of bytes to compress
+     * @return the compressed bytes, or null if they would not be smaller than the data
+     */
+    public static byte[] deflate(byte[] data, int start, int length) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(data, start, length);
+        deflater.finish();
+        byte[] out = new byte[length];                                          // As long as the data is no gain
+        int size = 0;
+        while (!deflater.finished() && size < out.length) {
+            size += deflater.deflate(out, size, out.length - size);
+        }
+        if (!deflater.finished() || size >= length) {
+            return null;
+        }
+        byte[] packed = new byte[size];
+        System.arraycopy(out, 0, packed, 0, size);
+        return packed;
+    }
+
+    /**
+     * Decompresses part of an array.
+     * @param data the array holding the compressed bytes
+     * @param start the index of the first compressed byte
+     * @param length the number of compressed bytes
+     * @param rawLength the number of bytes the data decompresses to
+     * @return the decompressed bytes
+     * @throws IOException if the data is damaged or does not decompress to rawLength bytes
+     */
+    public static byte[] inflate(byte[] data, int start, int length, int rawLength) throws IOException {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(data, start, length);
+        byte[] raw = new byte[rawLength];
+        int size = 0;
+        try {
+            while (size < rawLength && !inflater.finished()) {
+                int read = inflater.inflate(raw, size, rawLength - size);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += read;
+            }
+            if (size == rawLength && !inflater.finished() && inflater.inflate(new byte[1]) > 0) { // End of stream may still be unread
+                size++;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        if (size != rawLength || !inflater.finished()) {
+            throw new IOException("Compressed chunk does not decompress to " + rawLength + " bytes");
+        }
+        return raw;
+    }
+}
@@ -2,24 +2,34 @@ package data;
 
 import io.socket.client.Ack;
 import io.socket.client.Socket;
+import io.socket.emitter.Emitter;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.CRC32;
 import javax.swing.JFileChooser;
 import javax.swing.JTable;
 import org.json.JSONException;
 import org.json.JSONObject;
 import swing.PanelStatus_Item;
+import swing.ProgressTimer;
 
 /**
  * DataFileServer handles the operations for file transfer over a socket connection.
  * It can save the received file data and provides status updates using GUI components.
+ * Large files are fetched over several connections at once, each with its own window of
+ * range requests, and the replies are stitched together at their offsets.
  */
 public class DataFileServer {
 
-    private int fileID;
+    private long fileID;
     private String fileName;
+    private String hash;                                                        // SHA-256 of the content, null if the server did not send it
     private String fileSize;
     private long fileSizeLength;
     private File outPutPath;
@@ -27,8 +37,37 @@ public class DataFileServer {
     private PanelStatus_Item item;
     private JTable table;
     private DataWriter writer;
-    private Socket socket;
+    private TransferProgress progress;
+    private SocketPool sockets;
+    private int[] streamInFlight;                                               // Requests waiting per connection
     private boolean pause;
+    private boolean finished;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private int inFlight;                                                       // Requests waiting for their reply
+    private long nextOffset;                                                    // First byte no request has asked for yet
+    private final Deque<long[]> retry = new ArrayDeque<>();
+    private int emptyReplies;                                                   // Replies in a row that carried no data
+    private final ChunkSizeController chunkSize = new ChunkSizeController();
+
+    /**
+     * Number of range requests that may be waiting for a reply at the same time.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 8;
+
+    /**
+     * Number of connections a single download may use.
+     */
+    public static final int DEFAULT_STREAMS = 4;
+
+    /**
+     * Files are only fetched over several connections if each one gets at least this much.
+     */
+    public static final long MIN_STREAM_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Replies in a row without data after which the download is given up.
+     */
+    public static final int MAX_EMPTY_REPLIES = 3;
     
     public PanelStatus_Item getItem() {
         return item;
@@ -38,11 +77,19 @@ public class DataFileServer {
         this.item = item;
     }
 
-    public int getFileID() {
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        this.windowSize = Math.max(1, windowSize);
+    }
+
+    public long getFileID() {
         return fileID;
     }
 
-    public void setFileID(int fileID) {
+    public void setFileID(long fileID) {
         this.fileID = fileID;
     }
 
@@ -78,7 +125,7 @@ public class DataFileServer {
         this.status = status;
     }
 
-    public DataFileServer(int fileID, String fileName, String fileSize, File outPutPath, boolean status) {
+    public DataFileServer(long fileID, String fileName, String fileSize, File outPutPath, boolean status) {
         this.fileID = fileID;
         this.fileName = fileName;
         this.fileSize = fileSize;
@@ -91,17 +138,19 @@ public class DataFileServer {
      *
      * @param json   the JSON object containing file details
      * @param table  the JTable to display status
-     * @param socket the socket used for file transfer
+     * @param sockets the sockets used for file transfer, extra ones are only opened for large files
      * @throws JSONException if a JSON error occurs
      */
-    public DataFileServer(JSONObject json, JTable table, Socket socket) throws JSONException {
-        fileID = json.getInt("fileID");                                         // Parsing file details from JSON object
+    public DataFileServer(JSONObject json, JTable table, SocketPool sockets) throws JSONException {
+        fileID = json.getLong("fileID");                                        // Parsing file details from JSON object
         fileName = json.getString("fileName");
         fileSize = json.getString("fileSize");
         fileSizeLength = json.getLong("fileSizeLength");
+        hash = json.has("hash") && !json.isNull("hash") ? json.getString("hash") : null;
+        progress = new TransferProgress(fileSizeLength);
         item = new PanelStatus_Item();
         this.table = table;
-        this.socket = socket;
+        this.sockets = sockets;
         item.addEventSave(new ActionListener() {                                
             @Override
             public void actionPerformed(ActionEvent ae) {                       // Event listener for saving the file
@@ -109,7 +158,12 @@ public class DataFileServer {
                 ch.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
                 int opt = ch.showSaveDialog(null);
                 if (opt == JFileChooser.APPROVE_OPTION) {                       // Set output path and start saving the file
-                    outPutPath = new File(ch.getSelectedFile().getAbsolutePath() + "/" + fileName);
+                    outPutPath = resolve(ch.getSelectedFile(), fileName);
+                    if (outPutPath == null) {
+                        System.err.println("Refusing to save " + fileName + " outside " + ch.getSelectedFile());
+                        item.failed();
+                        return;
+                    }
                     item.startFile();
                     try {
                         saveFile();
@@ -122,6 +176,7 @@ public class DataFileServer {
         item.addEvent(new ActionListener() {                                    // Event listener for pause and resume functionality
             @Override
             public void actionPerformed(ActionEvent ae) {
+                progress.setPaused(item.isPause());                             // Socket threads read the copy, not the button
                 if (!item.isPause() && pause) {
                     pause = false;
                     try {
@@ -134,48 +189,222 @@ public class DataFileServer {
         });
     }
     
-     /**
-     * Saves the file by requesting chunks of data from the server and writing them to the output file.
+    /**
+     * Places a file listed by the server in the directory the user picked. The name may hold
+     * the directories it was uploaded from, but it comes from the server, so it must not lead
+     * out of the picked directory.
+     *
+     * @param directory the directory the user picked
+     * @param name      the name of the file on the server, a relative path with / between directories
+     * @return the file to save to, or null if the name leads outside the directory
+     */
+    public static File resolve(File directory, String name) {
+        try {
+            Path base = directory.toPath().toAbsolutePath().normalize();
+            Path target = base.resolve(name.replace('\\', '/')).normalize();    // An absolute name replaces the base and fails the check below
+            if (!target.startsWith(base) || target.equals(base)) {
+                return null;
+            }
+            return target.toFile();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves the file by keeping up to windowSize range requests outstanding at the same time.
+     * Every request asks for the bytes at its own offset, and every reply is written at that
+     * offset, so the download is not limited to one chunk per round trip.
      *
      * @throws IOException  if an I/O error occurs
      * @throws JSONException if a JSON error occurs
      */
-    private void saveFile() throws IOException, JSONException {
+    private synchronized void saveFile() throws IOException, JSONException {
+        if (finished) {
+            return;
+        }
         // Initialize DataWriter if not already initialized, also needs the file size.
         if (writer == null) {
+            outPutPath.getParentFile().mkdirs();                                // Files uploaded from a directory are listed under its path
             writer = new DataWriter(outPutPath, fileSizeLength);
+            writer.setExpectedHash(hash);                                       // Hashed as the chunks arrive, checked with the last one
+            ProgressTimer.getDefault().watch(progress, item, table);
+            int count = (int) Math.max(1, Math.min(sockets.getSize(), fileSizeLength / MIN_STREAM_SIZE));
+            streamInFlight = new int[count];
+            for (int stream = 0; stream < count; stream++) {
+                sockets.get(stream).on(Socket.EVENT_DISCONNECT, disconnected);
+            }
+        }
+        for (int stream = 0; stream < streamInFlight.length; stream++) {
+            while (streamInFlight[stream] < windowSize && !progress.isPaused()) {
+                long[] range = retry.poll();                                    // Remainders of short replies go first
+                if (range == null) {
+                    if (nextOffset >= fileSizeLength) {
+                        break;
+                    }
+                    range = new long[]{nextOffset, Math.min(fileSizeLength, nextOffset + chunkSize.getChunkSize())};
+                    nextOffset = range[1];
+                }
+                requestRange(stream, range[0], (int) (range[1] - range[0]));
+            }
+        }
+        if (progress.isPaused()) {
+            if (inFlight == 0) {
+                pause = true;                                                   // Window drained, the resume event can take over
+            }
+        } else if (inFlight == 0 && !finished && retry.isEmpty() && nextOffset >= fileSizeLength) {
+            finished = true;
+            if (!writer.verify()) {
+                failed("does not match the hash of the server");
+                return;
+            }
+            writer.close();
+            progress.finish();                                                  // The progress bar shows it done on its next frame
+            release();
+        }
+    }
+
+    /**
+     * Fails the download when one of its connections drops, the replies it was waiting for
+     * on that connection never arrive.
+     */
+    private final Emitter.Listener disconnected = new Emitter.Listener() {
+        @Override
+        public void call(Object... os) {
+            synchronized (DataFileServer.this) {
+                if (!finished) {
+                    failed("lost its connection");
+                }
+            }
+        }
+    };
+
+    /**
+     * Stops listening to the connections of the download and closes the extra ones.
+     */
+    private void release() {
+        for (int stream = 0; stream < streamInFlight.length; stream++) {
+            sockets.get(stream).off(Socket.EVENT_DISCONNECT, disconnected);
         }
-        JSONObject data = new JSONObject();                                     // Create a JSON object to request the next file chunk, also gonna need a socket to request.
+        sockets.close();
+    }
+
+    /**
+     * Gives up the download, deletes what was written and shows the error.
+     *
+     * @param reason why the download failed, for the log
+     */
+    private void failed(String reason) {
+        System.err.println("Download of " + fileName + " " + reason);
+        finished = true;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (outPutPath.exists() && !outPutPath.delete()) {                      // A damaged file must not look like a download
+            System.err.println("Cannot delete " + outPutPath);
+        }
+        progress.fail();
+        release();
+    }
+
+    /**
+     * Requests one range of the file.
+     *
+     * @param stream the connection to send the request on
+     * @param offset the position of the range in the file
+     * @param length the number of bytes asked for
+     * @throws JSONException if a JSON error occurs
+     */
+    private void requestRange(int stream, long offset, int length) throws JSONException {
+        JSONObject data = new JSONObject();                                     // Create a JSON object to request the chunk at this offset
         data.put("fileID", fileID);                                              
-        data.put("length", writer.getFileLength());                              
+        data.put("length", offset);
+        data.put("chunkSize", length);                                          // The server never sends more than asked for
+        data.put("compression", Compression.DEFLATE);                           // The server only deflates files worth it
+        inFlight++;
+        streamInFlight[stream]++;
+        final long sent = System.nanoTime();
         
-        socket.emit("request_file", data, new Ack() {                           // Emit the request to the server
+        sockets.get(stream).emit("request_file", data, new Ack() {                           // Emit the request to the server
             @Override
             public void call(Object... os) {
-                try {
-                    if (os.length > 0) {
-                        byte[] b = (byte[]) os[0];
-                        writer.writeFile(b);                                    // Write the received chunk to the file
-                        item.showStatus((int) writer.getPercentage());          // Updating the status
-                        table.repaint();
-                        if (!item.isPause()) {                                  // Handling pause logic
-                            saveFile();
-                        } else {
-                            pause = true;
+                chunkSize.onAck(System.nanoTime() - sent);
+                chunkReceived(stream, offset, length, os);
+            }
+        });
+    }
+
+    /**
+     * Writes a reply at its offset and refills the window. The server may send less than was
+     * asked for when it clamps the chunk size, the rest of the range is requested again.
+     *
+     * @param stream the connection the request was sent on
+     * @param offset the position of the requested range
+     * @param length the number of bytes asked for
+     * @param os     the ack arguments sent by the server
+     */
+    private synchronized void chunkReceived(int stream, long offset, int length, Object... os) {
+        inFlight--;
+        streamInFlight[stream]--;
+        if (finished) {
+            return;                                                             // Given up while this request was on the way
+        }
+        boolean data = os.length > 0 && os[0] instanceof byte[] && ((byte[]) os[0]).length > 0;
+        try {
+            if (data && !isIntact((byte[]) os[0], os)) {
+                retry.add(new long[]{offset, offset + length});                 // Damaged on the way, ask for this range again
+            } else if (data) {
+                byte[] b = (byte[]) os[0];
+                if (os.length > 2 && os[2] instanceof Number) {                 // A third value is the raw length of a deflated chunk
+                    b = Compression.inflate(b, 0, b.length, ((Number) os[2]).intValue());
+                }
+                emptyReplies = 0;
+                writer.writeFile(b, offset);                                    // Write the received chunk at its offset
+                if (b.length < length) {
+                    retry.add(new long[]{offset + b.length, offset + length});
+                }
+                progress.set(writer.getReceived().getCovered());                // Sampled by the progress bar, no repaint per chunk
+            } else if (RetryTimer.isRetry(os) || ++emptyReplies <= MAX_EMPTY_REPLIES) {
+                retry.add(new long[]{offset, offset + length});                 // Disk queue full or read failed, ask again shortly
+                RetryTimer.later(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (DataFileServer.this) {
+                            try {
+                                saveFile();
+                            } catch (Exception e) {
+                                e.printStackTrace();
+                            }
                         }
-                    } else {
-                        item.showStatus((int) writer.getPercentage());          // Finalizing the file saving process
-                        item.done();
-                        table.repaint();
-                        writer.close();
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+                });
+                return;
+            } else {                                                            // Every range is inside the file, a missing one is lost
+                failed("got no data at offset " + offset + " from the server");
+                return;
             }
-        });
+            saveFile();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
     
+    /**
+     * @param data the chunk sent by the server
+     * @param os   the ack arguments, the second one is the CRC32 of the chunk
+     * @return true if the chunk matches its CRC32, or the server sent none
+     */
+    private static boolean isIntact(byte[] data, Object... os) {
+        if (os.length < 2 || !(os[1] instanceof Number)) {
+            return true;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue() == ((Number) os[1]).longValue();
+    }
+
     /**
      * Converts the file details into a row for the JTable.
      *
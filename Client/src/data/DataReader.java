@@ -2,16 +2,27 @@ package data;
 
 import io.socket.client.Ack;
 import io.socket.client.Socket;
+import io.socket.emitter.Emitter;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import javax.swing.JTable;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import swing.PanelStatus;
+import swing.ProgressTimer;
 
 /**
  * DataReader contains methods to read data from a specified file.
@@ -20,7 +31,7 @@ import swing.PanelStatus;
  */
 public class DataReader {
 
-    private int fileID;
+    private long fileID;
     private File file;
     private long fileSize;
     private String fileName;
@@ -28,16 +39,80 @@ public class DataReader {
     private PanelStatus status;
     private JTable table;
     private Socket client;
+    private SocketPool sockets;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private int streamCount = DEFAULT_STREAMS;
+    private final List<UploadStream> streams = new ArrayList<>();
+    private final Deque<long[]> pending = new ArrayDeque<>();                  // Ranges no stream has picked up yet
+    private int inFlight;
+    private int generation;                                                     // Bumped on reconnect, acks of older chunks are ignored
+    private TransferProgress progress;                                          // Bytes the server has confirmed, sampled by the progress bar
+    private boolean finished;
+    private int finishAttempts;                                                 // Finishes the server answered with ranges to send again
+    private int writeFailures;                                                  // Chunks in a row the server could not write
+    private boolean compress;                                                   // The server takes deflated chunks and the file is worth it
+    private DeltaPlan delta;                                                    // Blocks the server copies from the version it stores
+    private boolean batch;                                                      // The file is a BatchArchive, deleted once uploaded
+    private BatchArchive archive;                                               // Packed into the file once the upload starts
+    private Runnable onDone;                                                    // Told once the upload ended, stored or not
+    private boolean done;
+    private final ChunkSizeController chunkSize = new ChunkSizeController();
+
+    /**
+     * Number of chunks that may be waiting for an ack from the server at the same time.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 8;
+
+    /**
+     * Number of ranges of one file that are uploaded at the same time.
+     */
+    public static final int DEFAULT_STREAMS = 4;
+
+    /**
+     * Files are only split into streams of at least this size.
+     */
+    public static final long MIN_STREAM_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Files from this size on are checked against a stored version of the same name first.
+     */
+    public static final long DELTA_MIN_SIZE = 1024 * 1024;
+
+    /**
+     * Finishes after which an upload the server keeps finding damaged is given up.
+     */
+    public static final int MAX_FINISH_ATTEMPTS = 3;
+
+    /**
+     * Chunks in a row the server failed to write after which an upload is given up.
+     */
+    public static final int MAX_WRITE_FAILURES = 3;
+
+    /**
+     * One range of the file with its own chain of acks.
+     */
+    private static class UploadStream {
+
+        private final Socket socket;
+        private long position;
+        private long end;
+        private int inFlight;
+        private final Deque<long[]> retry = new ArrayDeque<>();                // Chunks the server refused, sent again first
+
+        private UploadStream(Socket socket) {
+            this.socket = socket;
+        }
+    }
     
     public PanelStatus getStatus() {
         return status;
     }
 
-    public int getFileID() {
+    public long getFileID() {
         return fileID;
     }
 
-    public void setFileID(int fileID) {
+    public void setFileID(long fileID) {
         this.fileID = fileID;
     }
 
@@ -73,33 +148,85 @@ public class DataReader {
         this.accFile = accFile;
     }
 
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        this.windowSize = Math.max(1, windowSize);
+    }
+
+    public ChunkSizeController getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @param onDone run once when the upload is stored, given up or refused by the server
+     */
+    public void setOnDone(Runnable onDone) {
+        this.onDone = onDone;
+    }
+
+    public boolean isBatch() {
+        return batch;
+    }
+
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    public int getStreamCount() {
+        return streamCount;
+    }
+
+    public void setStreamCount(int streamCount) {
+        this.streamCount = Math.max(1, streamCount);
+    }
+
     
     /**
      * Constructor to initialize the DataReader with a file and a JTable for status display.
+     * The file is not opened before it is read.
      *
      * @param file  the file to be read
      * @param table the JTable to display status
      * @throws IOException if an I/O error occurs
      */
     public DataReader(File file, JTable table) throws IOException {
-        accFile = new RandomAccessFile(file, "r");                              // Opening in read-only
-        this.file = file;
-        this.fileSize = accFile.length();
-        this.fileName = file.getName();
+        this(file, lengthOf(file), table);
+    }
+
+    /**
+     * Constructor for a batch of small files, packed into an archive once the upload starts.
+     *
+     * @param archive the files of the batch
+     * @param table   the JTable to display status
+     */
+    public DataReader(BatchArchive archive, JTable table) {
+        this(null, archive.getSize(), table);
+        this.archive = archive;
+        this.batch = true;
+        this.fileName = archive.getCount() + " files";                          // Shown in the table instead of the archive name
+    }
+
+    private DataReader(File file, long fileSize, JTable table) {
+        this.file = file;                                                       // Opened on the first read, queued uploads hold no handle
+        this.fileSize = fileSize;
+        this.fileName = file == null ? null : file.getName();
         this.status = new PanelStatus();
+        this.progress = new TransferProgress(fileSize);
         this.status.addEvent(new ActionListener() {                             // Event listener to handle pause/resume functionality
             @Override
             public void actionPerformed(ActionEvent ae) {
+                progress.setPaused(status.isPause());                           // Socket threads read the copy, not the button
                 if (!status.isPause() && pause) {
                     pause = false;
-                    client.emit("req_file_length", fileID, new Ack() {          // Request current file length from server by file id
+                    client.emit("req_file_missing", fileID, new Ack() {         // Request the ranges the server still misses by file id
                         @Override
                         public void call(Object... os) {
                             if (os.length > 0) {
-                                long length = Long.valueOf(os[0].toString());
                                 try {
-                                    accFile.seek(length);                       // Move the file pointer to the resumed position
-                                    sendingFile(client);                        // Continue sending the file
+                                    resumeAt((JSONArray) os[0]);                // Plan the streams again from the missing ranges
                                 } catch (Exception e) {
                                     e.printStackTrace();
                                 }
@@ -110,36 +237,139 @@ public class DataReader {
             }
         });
         this.table = table;
+        ProgressTimer.getDefault().watch(progress, status, table);
     }
 
 
     
     /**
-     * Reads the next chunk of data from the file.
+     * Reads a chunk of data from the file with a positional read, so streams working on
+     * different ranges do not move a shared file pointer.
      *
-     * @return a byte array containing the data read, or null if the end of the file is reached
+     * @param position the offset of the chunk in the file
+     * @param length   the number of bytes to read
+     * @return a byte array containing the data read
      * @throws IOException if an I/O error occurs
      */
-    public synchronized byte[] readFile() throws IOException {
-        long filePointer = accFile.getFilePointer();
-        if (filePointer != fileSize) {                                          //  2000 is max send file per package
-            int max = 2000;                                                     // Split it to send a large file
-            long length = filePointer + max >= fileSize ? fileSize - filePointer : max;
-            byte[] data = new byte[(int) length];                               
-            accFile.read(data);
-            return data;
-        } else {
-            return null;
+    public byte[] readFile(long position, int length) throws IOException {
+        byte[] data = new byte[length];
+        readFile(data, 0, position, length);
+        return data;
+    }
+
+    /**
+     * Reads a chunk of data from the file into part of an array, used to fill the payload
+     * of a chunk frame without copying.
+     *
+     * @param data     the array to read into
+     * @param start    the index in the array the chunk starts at
+     * @param position the offset of the chunk in the file
+     * @param length   the number of bytes to read
+     * @throws IOException if an I/O error occurs
+     */
+    public void readFile(byte[] data, int start, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, start, length);
+        while (buffer.hasRemaining()) {
+            int read = channel().read(buffer, position + buffer.position() - start);
+            if (read < 0) {
+                throw new IOException("File " + fileName + " is shorter than " + fileSize + " bytes");
+            }
         }
     }
     
+    /**
+     * Computes the SHA-256 of the file with positional reads.
+     *
+     * @return the hash as lowercase hex
+     * @throws IOException if an I/O error occurs
+     */
+    public String hashFile() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        long position = 0;
+        int read;
+        while ((read = channel().read(buffer, position)) > 0) {
+            position += read;
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Looks at the start of the file to decide if its chunks are worth compressing.
+     *
+     * @return false for files that are compressed already or look random
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean isCompressible() throws IOException {
+        int length = (int) Math.min(Compression.SAMPLE_SIZE, fileSize);
+        byte[] sample = new byte[length];
+        readFile(sample, 0, 0, length);
+        return Compression.isCompressible(sample, 0, length);
+    }
+
+    /**
+     * @param file the file to upload
+     * @return the size of the file
+     * @throws IOException if it is not a file
+     */
+    private static long lengthOf(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("Not a file: " + file);
+        }
+        return file.length();
+    }
+
+    /**
+     * Writes the archive of a batch, its size is only exact once the files are read.
+     *
+     * @param data the file name, size and chunk size, the size is corrected
+     * @throws IOException if a file cannot be read or the archive written
+     */
+    private void pack(JSONObject data) throws IOException, JSONException {
+        File packed = archive.pack();
+        synchronized (this) {
+            file = packed;
+            fileSize = packed.length();
+        }
+        progress.setTotal(fileSize);
+        data.put("fileSize", fileSize);
+    }
+
+    /**
+     * @return the channel of the file, opened in read-only mode on the first call
+     * @throws IOException if the file cannot be opened
+     */
+    private synchronized FileChannel channel() throws IOException {
+        if (accFile == null) {
+            accFile = new RandomAccessFile(file, "r");
+        }
+        return accFile.getChannel();
+    }
+
     /**
      * Closes the RandomAccessFile.
      *
      * @throws IOException if an I/O error occurs
      */
-    public void close() throws IOException {
-        accFile.close();
+    public synchronized void close() throws IOException {
+        if (accFile != null) {
+            accFile.close();
+        }
+        if (batch && file != null && !file.delete()) {                                          // The archive was only packed to be uploaded
+            System.err.println("Cannot delete batch archive " + file);
+        }
     }
     
     /**
@@ -169,10 +399,12 @@ public class DataReader {
      * @return the percentage of the file read
      * @throws IOException if an I/O error occurs
      */
-    public double getPercentage() throws IOException {
+    public synchronized double getPercentage() throws IOException {
+        if (fileSize <= 0) {
+            return 100;
+        }
         double percentage;
-        long filePointer = accFile.getFilePointer();
-        percentage = filePointer * 100 / fileSize;
+        percentage = progress.getTransferred() * 100 / fileSize;                // Only count bytes the server has confirmed
         return percentage;
     }
     
@@ -189,27 +421,182 @@ public class DataReader {
     /**
      * Starts sending the file over the socket connection.
      *
-     * @param socket the socket to use for sending the file
+     * @param sockets the sockets to use for sending the file, the primary one carries the handshake
      * @throws JSONException if a JSON error occurs
      */
-    public void startSend(Socket socket) throws JSONException {
+    public void startSend(SocketPool sockets) throws JSONException {
+        Socket socket = sockets.getPrimary();
+        this.sockets = sockets;
         this.client = socket;
+        socket.on(Socket.EVENT_RECONNECT, reconnected);                         // The server may have restarted, resume from its journal
         JSONObject data = new JSONObject();
         data.put("fileName", fileName);
         data.put("fileSize", fileSize);
-        
+        data.put("chunkSize", chunkSize.getMaxChunkSize());                     // Largest chunk we would like to send
+        if (batch) {
+            data.put("batch", true);                                            // The server unpacks it into its files
+        }
+        if (fileSize >= DELTA_MIN_SIZE && !batch) {
+            requestSignatures(socket, data);                                    // A stored version may spare sending most of the file
+        } else {
+            prepare(socket, data, null);
+        }
+    }
+
+    /**
+     * Asks the server for the block signatures of the version of the file it stores.
+     *
+     * @param socket the primary socket
+     * @param data   the file name, size and chunk size
+     */
+    private void requestSignatures(Socket socket, JSONObject data) {
+        socket.emit("signatures", fileName, new Ack() {
+            @Override
+            public void call(Object... os) {                                    // Index 0 stored fileID, Index 1 block size, Index 2 signatures
+                if (RetryTimer.isRetry(os)) {
+                    RetryTimer.later(new Runnable() {
+                        @Override
+                        public void run() {
+                            requestSignatures(socket, data);
+                        }
+                    });
+                } else if (os.length > 2 && os[2] instanceof byte[]) {
+                    prepare(socket, data, new DeltaPlan(((Number) os[0]).longValue(), ((Number) os[1]).intValue(), (byte[]) os[2]));
+                } else {
+                    prepare(socket, data, null);                                // No version stored under this name
+                }
+            }
+        });
+    }
+
+    /**
+     * Hashes the file, and plans the delta against the stored version if there is one, then
+     * emits the request to send it.
+     *
+     * @param socket the primary socket
+     * @param data   the file name, size and chunk size
+     * @param plan   the delta to plan, null to send the whole file
+     */
+    private void prepare(Socket socket, JSONObject data, DeltaPlan plan) {
+        new Thread(new Runnable() {                                             // Hashing reads the whole file, keep it off the caller's thread
+            @Override
+            public void run() {
+                if (file == null) {
+                    try {
+                        pack(data);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        notStarted("could not be packed");
+                        return;
+                    }
+                }
+                try {
+                    if (plan != null) {
+                        plan.scan(channel(), fileSize);                         // Hashes the file in the same pass
+                        data.put("hash", plan.getHash());
+                        delta = plan.getCopied() > 0 ? plan : null;
+                    } else {
+                        data.put("hash", hashFile());                           // Lets the server skip content it already stores
+                    }
+                    if (isCompressible()) {
+                        data.put("compression", Compression.DEFLATE);           // Offered only, the server picks it in its answer
+                    }
+                } catch (Exception e) {
+                    delta = null;
+                    e.printStackTrace();
+                }
+                sendInit(socket, data);
+            }
+        }, "hash-" + fileName).start();
+    }
+
+    /**
+     * Has the server copy the blocks it stores already, then sends the rest. If the copy
+     * fails the whole file is sent.
+     */
+    private void copyBlocks() {
+        try {
+            JSONArray copies = new JSONArray();
+            for (long[] copy : delta.getCopies()) {
+                copies.put(new JSONArray().put(copy[0]).put(copy[1]).put(copy[2]));
+            }
+            JSONObject data = new JSONObject();
+            data.put("fileID", fileID);
+            data.put("base", delta.getBase());
+            data.put("blockSize", delta.getBlockSize());
+            data.put("copies", copies);
+            client.emit("copy_blocks", data, new Ack() {
+                @Override
+                public void call(Object... os) {
+                    if (RetryTimer.isRetry(os)) {
+                        RetryTimer.later(new Runnable() {
+                            @Override
+                            public void run() {
+                                copyBlocks();
+                            }
+                        });
+                        return;
+                    }
+                    try {
+                        if (os.length > 0 && Boolean.TRUE.equals(os[0])) {
+                            progress.add(delta.getCopied());                    // Copied blocks count as confirmed
+                            startStreams(delta.getLiterals());
+                        } else {
+                            startStreams(whole());
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the whole file as the only range to send
+     */
+    private List<long[]> whole() {
+        List<long[]> whole = new ArrayList<>();
+        whole.add(new long[]{0, fileSize});
+        return whole;
+    }
+
+    /**
+     * Emits the request to send the file and starts the streams once the server accepted it.
+     * If the server already stores the same content, the upload is complete right away.
+     *
+     * @param socket the primary socket
+     * @param data   the file name, size, chunk size, hash and compression
+     */
+    private void sendInit(Socket socket, JSONObject data) {
         socket.emit("send_file", data, new Ack() {                              // Emit the request to send the file
             @Override
-            public void call(Object... os) {                                    // Index 0 Boolean, Index 1 FileID
+            public void call(Object... os) {                                    // Index 0 Boolean, Index 1 FileID, Index 2 max chunk size, Index 3 stored already, Index 4 compression
                 if (os.length > 0) {
                     boolean action = (boolean) os[0];
                     if (action) {
-                        fileID = (int) os[1];                                   // Server generates a fileID and returns it
+                        fileID = ((Number) os[1]).longValue();                  // Server generates a fileID and returns it
+                        if (os.length > 2) {
+                            chunkSize.setMaxChunkSize(((Number) os[2]).intValue());
+                        }
+                        if (os.length > 3 && (boolean) os[3]) {
+                            storedAlready();
+                            return;
+                        }
+                        compress = os.length > 4 && Compression.DEFLATE.equals(os[4]);
+                        if (delta != null) {
+                            copyBlocks();                                       // Only the changed parts are sent after the copy
+                            return;
+                        }
                         try {
-                            sendingFile(socket);                                // Finally file sending may start
+                            startStreams(whole());                              // Finally file sending may start
                         } catch (Exception e) {
                             e.printStackTrace();
                         }
+                    } else {
+                        notStarted("was refused by the server");
                     }
                 }
             }
@@ -219,59 +606,390 @@ public class DataReader {
     private boolean pause = false;
 
     /**
-     * Recursively sends chunks of the file until the entire file is sent.
+     * Resumes the upload after the connection came back. Chunks that were waiting for an ack
+     * are lost with the old connection, so the server is asked which ranges it still misses,
+     * it keeps them across restarts in its transfer journal.
+     */
+    private final Emitter.Listener reconnected = new Emitter.Listener() {
+        @Override
+        public void call(Object... os) {
+            synchronized (DataReader.this) {
+                if (finished || fileID == 0) {
+                    return;
+                }
+                generation++;
+                inFlight = 0;
+                streams.clear();
+                pending.clear();
+                if (progress.isPaused()) {
+                    pause = true;                                               // Nothing in flight any more, resume can take over
+                    return;
+                }
+            }
+            client.emit("req_file_missing", fileID, new Ack() {
+                @Override
+                public void call(Object... os) {
+                    if (os.length > 0) {
+                        try {
+                            resumeAt((JSONArray) os[0]);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * Splits the ranges still to be sent into pieces and starts the streams. Large files are
+     * sent as up to streamCount ranges at once, each stream on its own socket of the pool.
      *
-     * @param socket the socket to use for sending the file
+     * @param missing the ranges the server does not have yet as {start, end} pairs
      * @throws IOException if an I/O error occurs
      * @throws JSONException if a JSON error occurs
      */
-    private void sendingFile(Socket socket) throws IOException, JSONException {
-        JSONObject data = new JSONObject();
-        data.put("fileID", fileID);
-        byte[] bytes = readFile();
-        if (bytes != null) {
-            data.put("data", bytes);
-            data.put("finish", false);
-        } else {
-            data.put("finish", true);
+    private synchronized void startStreams(List<long[]> missing) throws IOException, JSONException {
+        long total = 0;
+        for (long[] range : missing) {
+            total += range[1] - range[0];
+        }
+        int count = (int) Math.max(1, Math.min(Math.min(streamCount, sockets.getSize()), total / MIN_STREAM_SIZE));
+        long piece = Math.max(MIN_STREAM_SIZE, (total + count - 1) / count);
+        pending.clear();
+        for (long[] range : missing) {
+            for (long start = range[0]; start < range[1]; start += piece) {
+                pending.add(new long[]{start, Math.min(range[1], start + piece)});
+            }
+        }
+        streams.clear();
+        for (int i = 0; i < count; i++) {
+            streams.add(new UploadStream(sockets.get(i)));
+        }
+        for (UploadStream stream : streams) {
+            sendingFile(stream);
+        }
+    }
+
+    /**
+     * Fills the send window of one stream with chunks until windowSize chunks are waiting
+     * for an ack or the stream has no range left to send. Every chunk is a binary frame
+     * carrying its offset, so the server can place it without relying on arrival order. The finish event is only
+     * emitted once every chunk of every stream has been acknowledged.
+     *
+     * @param stream the stream to send chunks for
+     * @throws IOException if an I/O error occurs
+     * @throws JSONException if a JSON error occurs
+     */
+    private synchronized void sendingFile(UploadStream stream) throws IOException, JSONException {
+        while (stream.inFlight < windowSize && !progress.isPaused()) {
+            long offset;
+            int length;
+            long[] again = stream.retry.poll();
+            if (again != null) {
+                offset = again[0];
+                length = (int) (again[1] - again[0]);
+            } else {
+                if (stream.position >= stream.end) {
+                    long[] range = pending.poll();                              // Move on to the next range nobody sends yet
+                    if (range == null) {
+                        break;
+                    }
+                    stream.position = range[0];
+                    stream.end = range[1];
+                }
+                offset = stream.position;
+                length = (int) Math.min(chunkSize.getChunkSize(), stream.end - offset);
+                stream.position += length;
+            }
+            byte[] frame = ChunkFrame.allocate(fileID, offset, length, 0);     // Binary header, payload read in behind it
+            readFile(frame, ChunkFrame.HEADER_SIZE, offset, length);
+            if (compress) {
+                byte[] packed = Compression.deflate(frame, ChunkFrame.HEADER_SIZE, length);
+                if (packed != null) {                                           // Chunks that do not shrink still go out raw
+                    frame = ChunkFrame.compressed(fileID, offset, packed, length);
+                }
+            }
+            ChunkFrame.seal(frame);                                             // The server checks the payload against its CRC32
+            stream.inFlight++;
+            inFlight++;
+            final long sent = System.nanoTime();
+            final int sentIn = generation;
+            stream.socket.emit(ChunkFrame.EVENT, frame, new Ack() {
+                @Override
+                public void call(Object... os) {
+                    
+                    /* Call back function for a single chunk. The server has
+                       written it, so the slot it used in the window is free
+                       again and the next chunk can go out                      */
+                    
+                    if (!RetryTimer.isRetry(os) && !ChunkFrame.isResend(os)) {
+                        chunkSize.onAck(System.nanoTime() - sent);
+                    }
+                    chunkAcknowledged(stream, offset, length, sentIn, os);
+                }
+            });
+        }
+        if (progress.isPaused()) {
+            if (inFlight == 0) {
+                pause = true;                                                   // Window drained, the resume event can take over
+            }
+        } else if (inFlight == 0 && !finished && isSent()) {
+            finished = true;
+            sendFinish();                                                       // The file stays open until the server has checked it
+        }
+    }
+
+    /**
+     * Tells the server every chunk was sent, again later if its disk queue was full. The
+     * server checks the file against the hash sent with send_file and answers with the
+     * ranges to send again if it is not intact.
+     */
+    private void sendFinish() {
+        client.emit(ChunkFrame.EVENT, ChunkFrame.finish(fileID), new Ack() {
+            @Override
+            public void call(Object... os) {
+                if (RetryTimer.isRetry(os)) {
+                    RetryTimer.later(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendFinish();
+                        }
+                    });
+                } else if (ChunkFrame.isResend(os) && os.length > 2) {
+                    resendAfterFinish((JSONArray) os[2]);
+                } else {
+                    completed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the file and the extra connections once the server stored the upload.
+     */
+    private synchronized void completed() {
+        try {
             close();    //  to close file
-            status.done();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        sockets.close();
+        client.off(Socket.EVENT_RECONNECT, reconnected);
+        progress.finish();
+        done();
+    }
+
+    /**
+     * Ends an upload that could not be started.
+     *
+     * @param reason why it was not started, for the log
+     */
+    private synchronized void notStarted(String reason) {
+        System.err.println("Upload of " + fileName + " " + reason);
+        finished = true;
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        sockets.close();
+        client.off(Socket.EVENT_RECONNECT, reconnected);
+        progress.fail();
+        done();
+    }
+
+    /**
+     * Gives up the upload, shows the error and has the server discard what it received.
+     *
+     * @param reason why the upload failed, for the log
+     */
+    private synchronized void abort(String reason) {
+        System.err.println("Upload of " + fileName + " " + reason + ", giving up");
+        finished = true;
+        generation++;                                                           // Acks still on the way are ignored
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        socket.emit("sending", data, new Ack() {
+        sockets.close();
+        client.off(Socket.EVENT_RECONNECT, reconnected);
+        sendAbort();
+        progress.fail();
+        done();
+    }
+
+    /**
+     * Asks the server to discard the upload, again later if its disk queue was full.
+     */
+    private void sendAbort() {
+        client.emit("abort_file", fileID, new Ack() {
             @Override
             public void call(Object... os) {
-                
-                /* Call back function for sending more file data. This function
-                   indicates the server has received the file data we're sending
-                   so we need send more file data until we finish, thus the
-                   response Boolean true or false                             */
-                
-                if (os.length > 0) {
-                    boolean act = (boolean) os[0];
-                    if (act) {
+                if (RetryTimer.isRetry(os)) {
+                    RetryTimer.later(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendAbort();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Tells the owner of the upload once that it ended.
+     */
+    private synchronized void done() {
+        if (!done) {
+            done = true;
+            if (onDone != null) {
+                onDone.run();
+            }
+        }
+    }
+
+    /**
+     * Sends the ranges again the server found missing or damaged when the upload was finished.
+     *
+     * @param ranges the ranges as an array of [start, end] arrays
+     */
+    private synchronized void resendAfterFinish(JSONArray ranges) {
+        if (++finishAttempts > MAX_FINISH_ATTEMPTS) {
+            abort("keeps arriving damaged");
+            return;
+        }
+        finished = false;
+        try {
+            resumeAt(ranges);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Completes an upload the server did not need, it stores the same content already.
+     */
+    private synchronized void storedAlready() {
+        finished = true;
+        progress.set(fileSize);
+        client.off(Socket.EVENT_RECONNECT, reconnected);
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        progress.finish();
+        done();
+    }
+
+    /**
+     * @return true if no stream and no pending range has data left to send
+     */
+    private boolean isSent() {
+        if (!pending.isEmpty()) {
+            return false;
+        }
+        for (UploadStream stream : streams) {
+            if (stream.position < stream.end || !stream.retry.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles the ack of one chunk and refills the window of its stream unless the transfer
+     * is paused. When paused, the transfer is only marked as stopped once every window has
+     * drained, so the resume request asks the server for ranges that no longer change.
+     *
+     * @param stream the stream the chunk was sent on
+     * @param offset the position of the chunk in the file
+     * @param length the number of bytes in the acknowledged chunk
+     * @param sentIn the generation the chunk was sent in
+     * @param os     the ack arguments sent by the server
+     */
+    private synchronized void chunkAcknowledged(UploadStream stream, long offset, int length, int sentIn, Object... os) {
+        if (sentIn != generation) {
+            return;                                                             // Sent before a reconnect, already accounted for
+        }
+        stream.inFlight--;
+        inFlight--;
+        if (ChunkFrame.isResend(os)) {
+            stream.retry.add(new long[]{offset, offset + length});             // Damaged on the way, only this chunk goes again
+            try {
+                sendingFile(stream);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        if (RetryTimer.isRetry(os)) {
+            stream.retry.add(new long[]{offset, offset + length});             // Server disk queue full, send it again shortly
+            RetryTimer.later(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (DataReader.this) {
                         try {
-                            if (!status.isPause()) {                            // This function will call recursively until act = false
-                                showStatus((int) getPercentage());
-                                sendingFile(socket);                            // Continues sending more file chunks
-                            } else {
-                                pause = true;
-                            }
+                            sendingFile(stream);
                         } catch (Exception e) {
                             e.printStackTrace();
                         }
                     }
                 }
+            });
+            return;
+        }
+        if (os.length > 0 && Boolean.TRUE.equals(os[0])) {
+            writeFailures = 0;
+            progress.add(length);
+            try {
+                sendingFile(stream);                                            // Continues sending more file chunks
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        if (++writeFailures > MAX_WRITE_FAILURES) {
+            abort("cannot be written by the server");
+            return;
+        }
+        stream.retry.add(new long[]{offset, offset + length});                 // The server failed to write it, send it again shortly
+        RetryTimer.later(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DataReader.this) {
+                    if (finished) {
+                        return;
+                    }
+                    try {
+                        sendingFile(stream);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
             }
         });
     }
-    
+
     /**
-     * Updates the status and repaints the table to reflect the current status.
+     * Restarts the streams from the ranges the server reported missing when resuming.
      *
-     * @param values the current percentage of the file sent
+     * @param missing the missing ranges as an array of [start, end] arrays
+     * @throws IOException if an I/O error occurs
+     * @throws JSONException if a JSON error occurs
      */
-    public void showStatus(int values) {
-        status.showStatus(values);
-        table.repaint();
+    private synchronized void resumeAt(JSONArray missing) throws IOException, JSONException {
+        List<long[]> ranges = new ArrayList<>();
+        long remaining = 0;
+        for (int i = 0; i < missing.length(); i++) {
+            JSONArray range = missing.getJSONArray(i);
+            ranges.add(new long[]{range.getLong(0), range.getLong(1)});
+            remaining += range.getLong(1) - range.getLong(0);
+        }
+        progress.set(fileSize - remaining);
+        startStreams(ranges);
     }
 }
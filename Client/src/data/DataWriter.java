@@ -3,11 +3,14 @@ package data;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 
 /**
  * DataWriter provides methods to write data to a specified file.
- * It allows writing data in chunks and keeps track of the file size and write progress.
+ * It allows writing data in chunks at their offset and keeps track of the received ranges,
+ * so progress is known without asking the filesystem. If the server sent the SHA-256 of the
+ * file, it is hashed while it is written and checked with verify() once complete.
  * Class used for DataFileServer functionality.
  */
 public class DataWriter {
@@ -15,6 +18,9 @@ public class DataWriter {
     private File file;
     private long fileSize;
     private RandomAccessFile accFile;
+    private final RangeSet received = new RangeSet();
+    private String expectedHash;
+    private IncrementalHash hash;
     
     public File getFile() {
         return file;
@@ -40,6 +46,23 @@ public class DataWriter {
         this.accFile = accFile;
     }
 
+    public RangeSet getReceived() {
+        return received;
+    }
+
+    public String getExpectedHash() {
+        return expectedHash;
+    }
+
+    /**
+     * @param expectedHash the SHA-256 the server sent, null if it sent none
+     * @throws IOException if the JVM has no SHA-256
+     */
+    public void setExpectedHash(String expectedHash) throws IOException {
+        this.expectedHash = expectedHash;
+        this.hash = expectedHash == null ? null : new IncrementalHash();
+    }
+
     /**
      * Constructor to initialize the DataWriter with a file and its size.
      *
@@ -54,16 +77,49 @@ public class DataWriter {
     }
     
     /**
-     * Writes the specified byte array to the file at the current position.
+     * Writes the specified byte array to the file after the last byte received so far.
      * 
      * @param data the byte array to write file data toS
-     * @return the new length of the file after writing the data
+     * @return the number of bytes received so far
      * @throws IOException if an I/O error occurs
      */
     public synchronized long writeFile(byte[] data) throws IOException {
-        accFile.seek(accFile.length());
-        accFile.write(data);
-        return accFile.length();
+        return writeFile(data, received.getEnd());
+    }
+
+    /**
+     * Writes the specified byte array at its offset with a positional write, so replies
+     * to requests that were outstanding together may arrive in any order.
+     *
+     * @param data   the byte array to write
+     * @param offset the position of the data in the file
+     * @return the number of bytes received so far
+     * @throws IOException if an I/O error occurs
+     */
+    public long writeFile(byte[] data, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += accFile.getChannel().write(buffer, position);
+        }
+        received.add(offset, offset + data.length);
+        if (hash != null) {
+            hash.update(accFile.getChannel(), data, 0, data.length, offset, received.getContiguous());
+        }
+        return received.getCovered();
+    }
+
+    /**
+     * Checks the complete file against the hash the server sent, call it before closing.
+     *
+     * @return true if the hashes match or the server sent none
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean verify() throws IOException {
+        if (hash == null) {
+            return true;
+        }
+        return received.isComplete(fileSize) && expectedHash.equals(hash.finish(accFile.getChannel(), fileSize));
     }
 
     public void close() throws IOException {
@@ -75,18 +131,25 @@ public class DataWriter {
     }
 
     public String getCurrentFileSize() throws IOException {
-        return convertFile(accFile.length());
+        return convertFile(received.getCovered());
     }
 
     public double getPercentage() throws IOException {
+        if (fileSize <= 0) {
+            return 100;
+        }
         double percentage;
-        long filePointer = accFile.length();
+        long filePointer = received.getCovered();                               // Counted while writing, no stat per chunk
         percentage = filePointer * 100 / fileSize;
         return percentage;
     }
 
+    /**
+     * @return the number of bytes received without a gap from the start of the file
+     * @throws IOException if an I/O error occurs
+     */
     public long getFileLength() throws IOException {
-        return accFile.length();
+        return received.getContiguous();
     }
     
     /**
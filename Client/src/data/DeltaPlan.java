@@ -0,0 +1,214 @@
+package data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class works out which parts of a file the server has already, from the block
+ * signatures of the version it stores under the same name. The rsync weak checksum is
+ * rolled over the file a byte at a time and looked up in the signatures, a hit is
+ * confirmed with MD5. Matched blocks become copies the server makes from its version,
+ * everything between them is sent as usual. The same pass computes the SHA-256 of the
+ * file, so a delta upload reads the file once before sending.
+ */
+public class DeltaPlan {
+
+    private static final int SIGNATURE_SIZE = 20;                               // Weak checksum (4 bytes) and MD5 (16 bytes) per block
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long base;
+    private final int blockSize;
+    private final byte[] signatures;
+    private final Map<Integer, List<Integer>> blocks = new HashMap<>();         // Key is the weak checksum, value the blocks having it
+    private final List<long[]> copies = new ArrayList<>();                     // {offset, block, count}
+    private final List<long[]> literals = new ArrayList<>();                   // {start, end} ranges to send
+    private long copied;
+    private String hash;
+
+    /**
+     * @param base       the ID of the stored version
+     * @param blockSize  the block size the server signed it with
+     * @param signatures the signatures of its full blocks, in block order
+     */
+    public DeltaPlan(long base, int blockSize, byte[] signatures) {
+        this.base = base;
+        this.blockSize = blockSize;
+        this.signatures = signatures;
+        ByteBuffer buffer = ByteBuffer.wrap(signatures);
+        for (int i = 0; i < signatures.length / SIGNATURE_SIZE; i++) {
+            int weak = buffer.getInt(i * SIGNATURE_SIZE);
+            List<Integer> same = blocks.get(weak);
+            if (same == null) {
+                same = new ArrayList<>(1);
+                blocks.put(weak, same);
+            }
+            same.add(i);
+        }
+    }
+
+    public long getBase() {
+        return base;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public List<long[]> getCopies() {
+        return copies;
+    }
+
+    public List<long[]> getLiterals() {
+        return literals;
+    }
+
+    /**
+     * @return the bytes the server copies instead of receiving them
+     */
+    public long getCopied() {
+        return copied;
+    }
+
+    /**
+     * @return the SHA-256 of the file as lowercase hex, once scanned
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Reads the file once, splitting it into copies and literal ranges and hashing it.
+     *
+     * @param channel the file to upload
+     * @param size    the size of the file
+     * @throws IOException if an I/O error occurs
+     */
+    public void scan(FileChannel channel, long size) throws IOException {
+        MessageDigest sha;
+        MessageDigest md5;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[Math.max(BUFFER_SIZE, blockSize * 2)];
+        long bufferStart = 0;                                                   // Offset in the file of buffer[0]
+        int length = 0;
+        int position = 0;                                                       // Start of the window in the buffer
+        long literalStart = 0;
+        boolean end = false;
+        boolean rolling = false;
+        int a = 0;
+        int b = 0;
+        int expected = -1;                                                      // The block after the last match, the likeliest next one
+        while (true) {
+            if (length - position <= blockSize && !end) {                      // The window and the byte after it have to be in the buffer
+                System.arraycopy(buffer, position, buffer, 0, length - position);
+                bufferStart += position;
+                length -= position;
+                position = 0;
+                while (length < buffer.length) {
+                    int max = (int) Math.min(buffer.length - length, size - bufferStart - length);
+                    int read = max <= 0 ? -1 : channel.read(ByteBuffer.wrap(buffer, length, max), bufferStart + length);
+                    if (read < 0) {
+                        end = true;
+                        break;
+                    }
+                    sha.update(buffer, length, read);
+                    length += read;
+                }
+            }
+            if (length - position < blockSize) {
+                break;                                                          // A tail shorter than a block is always sent
+            }
+            if (!rolling) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    a += buffer[position + i] & 0xFF;
+                    b += (blockSize - i) * (buffer[position + i] & 0xFF);
+                }
+                rolling = true;
+            }
+            int block = match((a & 0xFFFF) | (b << 16), buffer, position, md5, expected);
+            if (block >= 0) {
+                long offset = bufferStart + position;
+                if (offset > literalStart) {
+                    literals.add(new long[]{literalStart, offset});
+                }
+                addCopy(offset, block);
+                position += blockSize;
+                literalStart = bufferStart + position;
+                rolling = false;
+                expected = block + 1;
+                continue;
+            }
+            if (position + blockSize >= length) {
+                break;                                                          // End of the file, no byte left to roll in
+            }
+            int out = buffer[position] & 0xFF;
+            int in = buffer[position + blockSize] & 0xFF;
+            a += in - out;
+            b += a - blockSize * out;
+            position++;
+        }
+        if (literalStart < size) {
+            literals.add(new long[]{literalStart, size});
+        }
+        byte[] digest = sha.digest();
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[digest[i] & 0xF];
+        }
+        hash = new String(chars);
+    }
+
+    /**
+     * @return the stored block the window matches, or -1 if none does
+     */
+    private int match(int weak, byte[] buffer, int position, MessageDigest md5, int expected) {
+        List<Integer> candidates = blocks.get(weak);
+        if (candidates == null) {
+            return -1;
+        }
+        md5.update(buffer, position, blockSize);
+        byte[] strong = md5.digest();
+        if (candidates.contains(expected) && sameStrong(expected, strong)) {
+            return expected;                                                    // Keeps runs of blocks together as one copy
+        }
+        for (int block : candidates) {
+            if (sameStrong(block, strong)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private boolean sameStrong(int block, byte[] strong) {
+        int from = block * SIGNATURE_SIZE + 4;
+        return Arrays.equals(strong, Arrays.copyOfRange(signatures, from, from + strong.length));
+    }
+
+    private void addCopy(long offset, int block) {
+        copied += blockSize;
+        if (!copies.isEmpty()) {
+            long[] last = copies.get(copies.size() - 1);
+            if (last[0] + last[2] * blockSize == offset && last[1] + last[2] == block) {
+                last[2]++;                                                      // The next block at the next offset extends the copy
+                return;
+            }
+        }
+        copies.add(new long[]{offset, block, 1});
+    }
+}
@@ -0,0 +1,110 @@
+package data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class computes the SHA-256 of a file while its chunks are written, so the hash is
+ * ready when the last chunk lands instead of after a second pass over the file. A chunk
+ * that continues the hashed part of the file is hashed from memory. A chunk written ahead
+ * of it is hashed once the gap before it is filled, by reading it back from the file,
+ * which is still in the page cache at that point.
+ */
+public class IncrementalHash {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final MessageDigest digest;
+    private long hashed;                                                        // Bytes from the start of the file in the digest
+    private String hash;
+
+    /**
+     * @throws IOException if the JVM has no SHA-256.
+     */
+    public IncrementalHash() throws IOException {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public synchronized long getHashed() {
+        return hashed;
+    }
+
+    /**
+     * Hashes a chunk that was just written, and whatever it made contiguous behind it.
+     * @param channel the file the chunk was written to.
+     * @param data the array holding the chunk.
+     * @param start the index of the first byte of the chunk.
+     * @param length the number of bytes in the chunk.
+     * @param offset the position of the chunk in the file.
+     * @param contiguous the bytes received without a gap from the start of the file, chunk included.
+     * @throws IOException if the file cannot be read back.
+     */
+    public synchronized void update(FileChannel channel, byte[] data, int start, int length, long offset, long contiguous) throws IOException {
+        if (hash != null) {
+            return;
+        }
+        long end = offset + length;
+        if (offset <= hashed && end > hashed) {                                 // A chunk sent again may overlap what is hashed already
+            int skip = (int) (hashed - offset);
+            digest.update(data, start + skip, length - skip);
+            hashed = end;
+        }
+        readUpTo(channel, contiguous);
+    }
+
+    /**
+     * Completes the hash, the file must be received completely.
+     * @param channel the file.
+     * @param size the size of the file.
+     * @return the hash as lowercase hex.
+     * @throws IOException if the file cannot be read back.
+     */
+    public synchronized String finish(FileChannel channel, long size) throws IOException {
+        if (hash == null) {
+            readUpTo(channel, size);
+            byte[] bytes = digest.digest();
+            char[] chars = new char[bytes.length * 2];
+            for (int i = 0; i < bytes.length; i++) {
+                chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+                chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+            }
+            hash = new String(chars);
+        }
+        return hash;
+    }
+
+    /**
+     * Starts over, used when the file is received again.
+     */
+    public synchronized void reset() {
+        digest.reset();
+        hashed = 0;
+        hash = null;
+    }
+
+    private void readUpTo(FileChannel channel, long end) throws IOException {
+        if (hashed >= end) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, end - hashed));
+        while (hashed < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - hashed));
+            int read = channel.read(buffer, hashed);
+            if (read < 0) {
+                throw new IOException("File ends at " + hashed + " before " + end);
+            }
+            buffer.flip();
+            digest.update(buffer);
+            hashed += read;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * RangeSet keeps the byte ranges of a download that have been received, merging ranges that
+ * touch or overlap. It tracks the number of bytes covered, so progress can be read without
+ * asking the filesystem.
+ */
+public class RangeSet {
+
+    // Key is the start of a range, value is its end (exclusive)
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+    //  Volatile so progress can be sampled without taking the lock writers hold
+    private volatile long covered;
+
+    /**
+     * Adds a range and merges it with the ranges it touches.
+     * @param start the first byte of the range.
+     * @param end the byte after the last byte of the range.
+     * @return the number of bytes that were not covered before.
+     */
+    public synchronized long add(long start, long end) {
+        if (end <= start) {
+            return 0;
+        }
+        long before = covered;
+        Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+            covered -= floor.getValue() - floor.getKey();
+            ranges.remove(floor.getKey());
+        }
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            covered -= next.getValue() - next.getKey();
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+        covered += end - start;
+        return covered - before;
+    }
+
+    /**
+     * @return the number of bytes covered by all ranges.
+     */
+    public long getCovered() {
+        return covered;
+    }
+
+    /**
+     * @return the length of the range starting at the beginning of the file, 0 if there is none.
+     */
+    public synchronized long getContiguous() {
+        Long end = ranges.get(0L);
+        return end == null ? 0 : end;
+    }
+
+    /**
+     * @return the end of the last range, 0 if there is none.
+     */
+    public synchronized long getEnd() {
+        return ranges.isEmpty() ? 0 : ranges.lastEntry().getValue();
+    }
+
+    /**
+     * @param size the size of the whole file.
+     * @return true if every byte of the file is covered.
+     */
+    public synchronized boolean isComplete(long size) {
+        return covered >= size && getContiguous() >= size;
+    }
+
+    /**
+     * Lists the gaps between the ranges, up to the size of the file.
+     * @param size the size of the whole file.
+     * @return the missing ranges as {start, end} pairs.
+     */
+    public synchronized List<long[]> getMissing(long size) {
+        List<long[]> missing = new ArrayList<>();
+        long position = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            if (range.getKey() > position) {
+                missing.add(new long[]{position, Math.min(range.getKey(), size)});
+            }
+            position = Math.max(position, range.getValue());
+            if (position >= size) {
+                break;
+            }
+        }
+        if (position < size) {
+            missing.add(new long[]{position, size});
+        }
+        return missing;
+    }
+
+    /**
+     * @return the covered ranges as {start, end} pairs.
+     */
+    public synchronized List<long[]> getRanges() {
+        List<long[]> list = new ArrayList<>();
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            list.add(new long[]{range.getKey(), range.getValue()});
+        }
+        return list;
+    }
+}
@@ -0,0 +1,43 @@
+package data;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RetryTimer sends requests again that the server refused because its disk queue was full.
+ * The server answers such a request with false and RETRY instead of doing it, and the
+ * transfer tries again after a short delay instead of flooding the server.
+ */
+public class RetryTimer {
+
+    public static final String RETRY = "retry";                                 // Second ack value of a refused request
+    public static final long RETRY_DELAY = 50;                                  // Milliseconds to wait before sending again
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "retry-timer");
+            thread.setDaemon(true);                                             // Never keeps the application alive
+            return thread;
+        }
+    });
+
+    /**
+     * @param os the ack arguments sent by the server
+     * @return true if the server refused the request and it should be sent again
+     */
+    public static boolean isRetry(Object... os) {
+        return os.length > 1 && Boolean.FALSE.equals(os[0]) && RETRY.equals(os[1]);
+    }
+
+    /**
+     * Runs a task after the retry delay.
+     *
+     * @param task the task sending the request again
+     */
+    public static void later(Runnable task) {
+        TIMER.schedule(task, RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
+}
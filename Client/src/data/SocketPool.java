@@ -0,0 +1,89 @@
+package data;
+
+import io.socket.client.IO;
+import io.socket.client.Socket;
+import io.socket.engineio.client.transports.WebSocket;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SocketPool holds the sockets a client uses to run one transfer over several connections.
+ * The first socket is the one the client connected with, the others are opened on first
+ * use with their own connection to the same server, so each one gets its own TCP stream.
+ */
+public class SocketPool {
+
+    private final String uri;
+    private final Socket primary;
+    private final List<Socket> sockets = new ArrayList<>();
+    private final int size;
+    private String userName = "";
+
+    /**
+     * @param uri     the address of the server
+     * @param primary the socket the client is connected with
+     * @param size    the largest number of sockets a transfer may use
+     */
+    public SocketPool(String uri, Socket primary, int size) {
+        this.uri = uri;
+        this.primary = primary;
+        this.size = Math.max(1, size);
+        sockets.add(primary);
+    }
+
+    public Socket getPrimary() {
+        return primary;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Sets the name the extra sockets announce to the server.
+     *
+     * @param userName the name of the user
+     */
+    public synchronized void setUserName(String userName) {
+        this.userName = userName;
+        for (int i = 1; i < sockets.size(); i++) {
+            sockets.get(i).emit("set_user", userName);
+        }
+    }
+
+    /**
+     * Returns the socket a stream should use, opening extra connections as needed.
+     *
+     * @param index the index of the stream
+     * @return the socket for the stream
+     */
+    public synchronized Socket get(int index) {
+        int slot = index % size;
+        while (sockets.size() <= slot) {
+            try {
+                IO.Options options = new IO.Options();
+                options.forceNew = true;                                        // A new connection instead of sharing the primary one
+                options.transports = new String[]{WebSocket.NAME};             // Bulk data only, skip the polling handshake
+                Socket socket = IO.socket(uri, options);
+                socket.open();
+                socket.emit("set_user", userName);                              // Buffered until the connection is open
+                sockets.add(socket);
+            } catch (URISyntaxException e) {
+                e.printStackTrace();
+                return primary;
+            }
+        }
+        return sockets.get(slot);
+    }
+
+    /**
+     * Closes the extra sockets, the primary socket stays open.
+     */
+    public synchronized void close() {
+        for (int i = 1; i < sockets.size(); i++) {
+            sockets.get(i).close();
+        }
+        sockets.subList(1, sockets.size()).clear();
+    }
+}
@@ -0,0 +1,90 @@
+package data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TransferProgress holds the progress of one transfer as plain counters. Socket threads
+ * update it for every chunk without touching Swing, and the progress bars sample it on
+ * the event dispatch thread at a fixed rate, see swing.ProgressTimer.
+ */
+public class TransferProgress {
+
+    private final AtomicLong transferred = new AtomicLong();
+    private volatile long total;
+    private volatile boolean paused;                                            // Mirrors the pause button for socket threads
+    private volatile boolean finished;
+    private volatile boolean failed;
+
+    public TransferProgress(long total) {
+        this.total = total;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @param total the size of the transfer, once it is known exactly
+     */
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public long getTransferred() {
+        return transferred.get();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @param bytes the number of bytes transferred since the last call
+     */
+    public void add(long bytes) {
+        transferred.addAndGet(bytes);
+    }
+
+    /**
+     * @param bytes the number of bytes transferred in total, used when resuming
+     */
+    public void set(long bytes) {
+        transferred.set(bytes);
+    }
+
+    /**
+     * Marks the transfer as complete, the progress bar shows it on its next frame.
+     */
+    public void finish() {
+        finished = true;
+    }
+
+    /**
+     * Marks the transfer as given up, the progress bar shows the error on its next frame.
+     */
+    public void fail() {
+        failed = true;
+    }
+
+    /**
+     * @return the percentage of the transfer done
+     */
+    public int getPercentage() {
+        if (total <= 0) {
+            return 100;
+        }
+        return (int) (transferred.get() * 100 / total);
+    }
+}
@@ -2,7 +2,7 @@ package swing;
 
 import java.awt.event.ActionListener;
 
-public class PanelStatus extends javax.swing.JPanel {
+public class PanelStatus extends javax.swing.JPanel implements ProgressView {
 
     public PanelStatus() {
         initComponents();
@@ -63,6 +63,12 @@ public class PanelStatus extends javax.swing.JPanel {
         cmd.setName("D");
     }
 
+    public void failed() {
+        pro.setString("Failed");
+        cmd.setEnabled(false);
+        cmd.setName("F");
+    }
+
     public boolean isPause() {
         return cmd.getName().equals("P");
     }
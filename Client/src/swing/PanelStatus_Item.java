@@ -2,7 +2,7 @@ package swing;
 
 import java.awt.event.ActionListener;
 
-public class PanelStatus_Item extends javax.swing.JLayeredPane {
+public class PanelStatus_Item extends javax.swing.JLayeredPane implements ProgressView {
 
     public PanelStatus_Item() {
         initComponents();
@@ -82,6 +82,12 @@ public class PanelStatus_Item extends javax.swing.JLayeredPane {
         cmd.setName("D");
     }
 
+    public void failed() {
+        pro.setString("Failed");
+        cmd.setEnabled(false);
+        cmd.setName("F");
+    }
+
     public boolean isPause() {
         return cmd.getName().equals("P");
     }
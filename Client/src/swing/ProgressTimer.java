@@ -0,0 +1,111 @@
+package swing;
+
+import data.TransferProgress;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * ProgressTimer samples the progress of running transfers on the event dispatch thread at
+ * a fixed frame rate and updates their progress bars. A table is repainted at most once
+ * per frame, however many chunks arrived, and socket threads never touch Swing.
+ * The timer only runs while there are transfers to watch.
+ */
+public class ProgressTimer {
+
+    public static final int FRAMES_PER_SECOND = 15;
+
+    private static final ProgressTimer DEFAULT = new ProgressTimer();
+
+    /**
+     * A transfer and the component showing it.
+     */
+    private static class Watch {
+
+        private final TransferProgress progress;
+        private final ProgressView view;
+        private final JTable table;
+        private int shown = -1;
+
+        private Watch(TransferProgress progress, ProgressView view, JTable table) {
+            this.progress = progress;
+            this.view = view;
+            this.table = table;
+        }
+    }
+
+    private final List<Watch> watches = new CopyOnWriteArrayList<>();
+    private final Timer timer;
+
+    public ProgressTimer() {
+        timer = new Timer(1000 / FRAMES_PER_SECOND, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                frame();
+            }
+        });
+    }
+
+    /**
+     * @return the timer shared by the transfers of the application
+     */
+    public static ProgressTimer getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Shows the progress of a transfer until it is finished or failed. May be called from any thread.
+     *
+     * @param progress the counters of the transfer
+     * @param view     the component showing the transfer
+     * @param table    the table holding the component
+     */
+    public void watch(TransferProgress progress, ProgressView view, JTable table) {
+        watches.add(new Watch(progress, view, table));
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (!timer.isRunning()) {
+                    timer.start();
+                }
+            }
+        });
+    }
+
+    /**
+     * Updates every progress bar whose percentage moved and repaints each table that changed.
+     */
+    private void frame() {
+        Set<JTable> changed = new HashSet<>();
+        for (Watch watch : watches) {
+            boolean finished = watch.progress.isFinished();                     // Read before the percentage, so the last bytes are shown
+            int percentage = watch.progress.getPercentage();
+            if (percentage != watch.shown) {
+                watch.shown = percentage;
+                watch.view.showStatus(percentage);
+                changed.add(watch.table);
+            }
+            if (finished) {
+                watch.view.done();
+                watches.remove(watch);
+                changed.add(watch.table);
+            } else if (watch.progress.isFailed()) {
+                watch.view.failed();
+                watches.remove(watch);
+                changed.add(watch.table);
+            }
+        }
+        for (JTable table : changed) {
+            table.repaint();
+        }
+        if (watches.isEmpty()) {
+            timer.stop();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package swing;
+
+/**
+ * ProgressView is a component showing the progress of one transfer.
+ */
+public interface ProgressView {
+
+    void showStatus(int values);
+
+    void done();
+
+    /**
+     * Shows that the transfer was given up.
+     */
+    void failed();
+}
@@ -0,0 +1,162 @@
+package bench;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Benchmark is one measured operation, run once per parameter such as a chunk size or a
+ * client count. The runner warms every case up before timing it, times several fixed length
+ * iterations and feeds every result into a sink, so the JIT can neither skip cold code nor
+ * remove the work as dead. Results can be saved and later runs compared against them, so a
+ * throughput change is measured against a baseline before it goes out.
+ */
+public abstract class Benchmark {
+
+    public static final int[] CHUNK_SIZES = {4 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1000000000L;
+    private static volatile int sink;
+
+    /**
+     * @return the name results are reported and saved under.
+     */
+    public abstract String getName();
+
+    /**
+     * @return the values the benchmark is run with, chunk sizes unless overridden.
+     */
+    public int[] getParams() {
+        return CHUNK_SIZES;
+    }
+
+    /**
+     * @param param the value the benchmark runs with.
+     * @return the payload bytes one operation moves, or 0 to report operations only.
+     */
+    public long getBytesPerOp(int param) {
+        return param;
+    }
+
+    /**
+     * Prepares the state one parameter is measured with.
+     * @param param the value the benchmark runs with.
+     * @throws Exception if the state cannot be prepared.
+     */
+    public abstract void setUp(int param) throws Exception;
+
+    /**
+     * Runs the measured operation once.
+     * @return a result the runner consumes, so the work cannot be optimized away.
+     * @throws Exception if the operation fails.
+     */
+    public abstract Object run() throws Exception;
+
+    /**
+     * Releases what setUp prepared.
+     * @throws Exception if the state cannot be released.
+     */
+    public void tearDown() throws Exception {
+    }
+
+    /**
+     * Runs every benchmark with every parameter and prints a line per case.
+     * @param benchmarks the benchmarks to run.
+     * @param args --save=file writes the results, --baseline=file compares against saved ones,
+     *             --filter=text only runs benchmarks whose name contains the text.
+     * @throws Exception if a benchmark fails.
+     */
+    public static void runAll(List<Benchmark> benchmarks, String[] args) throws Exception {
+        String save = null;
+        String filter = "";
+        Properties baseline = new Properties();
+        for (String arg : args) {
+            if (arg.startsWith("--save=")) {
+                save = arg.substring(7);
+            } else if (arg.startsWith("--baseline=")) {
+                try (InputStream in = new FileInputStream(arg.substring(11))) {
+                    baseline.load(in);
+                }
+            } else if (arg.startsWith("--filter=")) {
+                filter = arg.substring(9);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        Properties results = new Properties();
+        System.out.println(String.format(Locale.ROOT, "%-28s %10s %14s %10s %12s %10s",
+                "benchmark", "param", "ops/s", "error %", "MB/s", "vs base"));
+        for (Benchmark benchmark : benchmarks) {
+            if (!benchmark.getName().contains(filter)) {
+                continue;
+            }
+            for (int param : benchmark.getParams()) {
+                double[] score = benchmark.measure(param);
+                String key = benchmark.getName() + "." + param;
+                results.setProperty(key, String.valueOf(score[0]));
+                long bytes = benchmark.getBytesPerOp(param);
+                String base = baseline.getProperty(key);
+                System.out.println(String.format(Locale.ROOT, "%-28s %10d %14.1f %10.1f %12s %10s",
+                        benchmark.getName(), param, score[0], score[1] * 100 / score[0],
+                        bytes > 0 ? String.format(Locale.ROOT, "%.1f", score[0] * bytes / 1e6) : "-",
+                        base != null ? String.format(Locale.ROOT, "%+.1f%%", (score[0] / Double.parseDouble(base) - 1) * 100) : "-"));
+            }
+        }
+        if (save != null) {
+            try (OutputStream out = new FileOutputStream(save)) {
+                results.store(out, "ops/s per benchmark.param");
+            }
+        }
+    }
+
+    /**
+     * Warms one case up and times it.
+     * @param param the value the benchmark runs with.
+     * @return the mean operations per second and their standard deviation across iterations.
+     * @throws Exception if the benchmark fails.
+     */
+    private double[] measure(int param) throws Exception {
+        setUp(param);
+        try {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                iteration();
+            }
+            double[] scores = new double[MEASURE_ITERATIONS];
+            double sum = 0;
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = iteration();
+                sum += scores[i];
+            }
+            double mean = sum / scores.length;
+            double variance = 0;
+            for (double score : scores) {
+                variance += (score - mean) * (score - mean);
+            }
+            return new double[]{mean, Math.sqrt(variance / (scores.length - 1))};
+        } finally {
+            tearDown();
+        }
+    }
+
+    private double iteration() throws Exception {
+        long ops = 0;
+        int hash = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            Object result = run();
+            hash += result == null ? 0 : System.identityHashCode(result);
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        sink += hash;
+        return ops * 1e9 / elapsed;
+    }
+}
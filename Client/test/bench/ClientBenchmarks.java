@@ -0,0 +1,97 @@
+package bench;
+
+import data.ChunkFrame;
+import data.DataReader;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.swing.JTable;
+
+/**
+ * ClientBenchmarks measures how fast DataReader reads the chunks of an upload, both into a
+ * fresh array and straight into a chunk frame behind its header, the way chunks are sent.
+ *
+ * It lives under test so it is left out of the jar. Build it with ant compile-test and run
+ * it with the Client jar, the test classes and the lib folder on the class path, for example
+ * java -cp "dist/Client.jar:build/test/classes:lib/*" bench.ClientBenchmarks --save=before.properties
+ * and compare a later build with --baseline=before.properties.
+ */
+public class ClientBenchmarks {
+
+    //  Larger than any chunk, small enough to stay in the page cache
+    private static final long FILE_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * @param args see Benchmark.runAll.
+     * @throws Exception if a benchmark fails.
+     */
+    public static void main(String[] args) throws Exception {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.add(new ReadChunk("read.array", false));
+        benchmarks.add(new ReadChunk("read.frame", true));
+        Benchmark.runAll(benchmarks, args);
+        System.exit(0);                                                         // The progress timer keeps the EDT alive
+    }
+
+    /**
+     * DataReader.readFile of consecutive chunks of a file.
+     */
+    private static class ReadChunk extends Benchmark {
+
+        private final String name;
+        private final boolean frame;
+        private File file;
+        private DataReader reader;
+        private int chunkSize;
+        private long position;
+
+        ReadChunk(String name, boolean frame) {
+            this.name = name;
+            this.frame = frame;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void setUp(int param) throws Exception {
+            file = File.createTempFile("bench-read", ".bin");
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                byte[] block = new byte[1024 * 1024];
+                new Random(param).nextBytes(block);
+                for (long written = 0; written < FILE_SIZE; written += block.length) {
+                    out.write(block);
+                }
+            }
+            reader = new DataReader(file, new JTable());
+            chunkSize = param;
+            position = 0;
+        }
+
+        @Override
+        public Object run() throws Exception {
+            byte[] chunk;
+            if (frame) {
+                chunk = ChunkFrame.allocate(0, position, chunkSize, 0);
+                reader.readFile(chunk, ChunkFrame.HEADER_SIZE, position, chunkSize);
+            } else {
+                chunk = reader.readFile(position, chunkSize);
+            }
+            position += chunkSize;
+            if (position + chunkSize > FILE_SIZE) {
+                position = 0;
+            }
+            return chunk;
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            reader.close();
+            file.delete();
+        }
+    }
+}
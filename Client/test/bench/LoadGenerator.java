@@ -0,0 +1,678 @@
+package bench;
+
+import data.ChunkFrame;
+import data.RetryTimer;
+import io.socket.client.Ack;
+import io.socket.client.IO;
+import io.socket.client.Socket;
+import io.socket.emitter.Emitter;
+import io.socket.engineio.client.transports.WebSocket;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * LoadGenerator drives a file server on loopback with simulated clients and reports how it
+ * holds up. Every simulated client opens its own connection and speaks the protocol of the
+ * real client: set_user, the first page of list_files, send_file, pipelined chunk frames, the finish
+ * frame, then a pipelined download of the same file with request_file once new_file
+ * announces it. Downloads are checked against what was sent.
+ *
+ * The run is repeated for each client count given, so the count where throughput stops
+ * growing and ack latency climbs shows up in one table. For each step it prints upload and
+ * download MB/s, chunk ack latency percentiles, refused chunks, collections on both sides
+ * and the peak of the server's open file descriptors, sampled with the stats request.
+ *
+ * By default the server is started as a child process on a free loopback port with its own
+ * storage directory. It is built with ant compile-test and run with the test classes on the
+ * class path, for example
+ * java -cp "dist/Client.jar:build/test/classes:lib/*" bench.LoadGenerator --server-classpath="../Server/dist/Server.jar:../Server/lib/*" --clients=1,4,16,64
+ * With --url the load goes to a server that is already running instead.
+ */
+public class LoadGenerator {
+
+    private static final int DEFAULT_FILE_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    private static final int DEFAULT_WINDOW = 8;
+    private static final long STEP_TIMEOUT = 300;                               // Seconds a step may take before it counts as tipped over
+    private static final long SAMPLE_INTERVAL = 250;                            // Milliseconds between server stats samples
+
+    private String url;
+    private String serverClasspath = "../Server/dist/Server.jar" + File.pathSeparator + "../Server/lib/*";
+    private String serverArgs = "";
+    private int[] clientCounts = {1, 4, 16};
+    private int fileSize = DEFAULT_FILE_SIZE;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int window = DEFAULT_WINDOW;
+    private Process server;
+    private Socket control;
+
+    /**
+     * @param args --clients=1,4,16 --file-size=bytes --chunk-size=bytes --window=n and either
+     *             --url=http://host:port or --server-classpath=path with --server-args="--disk-queue=64"
+     * @throws Exception if the server cannot be started or reached
+     */
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            String value = arg.substring(split + 1);
+            switch (arg.substring(2, split)) {
+                case "url":
+                    generator.url = value;
+                    break;
+                case "server-classpath":
+                    generator.serverClasspath = value;
+                    break;
+                case "server-args":
+                    generator.serverArgs = value;
+                    break;
+                case "clients":
+                    String[] counts = value.split(",");
+                    generator.clientCounts = new int[counts.length];
+                    for (int i = 0; i < counts.length; i++) {
+                        generator.clientCounts[i] = Integer.parseInt(counts[i].trim());
+                    }
+                    break;
+                case "file-size":
+                    generator.fileSize = Integer.parseInt(value);
+                    break;
+                case "chunk-size":
+                    generator.chunkSize = Integer.parseInt(value);
+                    break;
+                case "window":
+                    generator.window = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        try {
+            generator.run();
+        } finally {
+            generator.close();
+        }
+        System.exit(0);                                                         // Socket.IO threads are not daemons
+    }
+
+    /**
+     * Starts or reaches the server and runs one step per client count.
+     *
+     * @throws Exception if the server cannot be started or reached
+     */
+    private void run() throws Exception {
+        if (url == null) {
+            url = startServer();
+        }
+        control = connect();
+        System.out.println(String.format(Locale.ROOT, "%d byte files, %d byte chunks, window %d, %s",
+                fileSize, chunkSize, window, url));
+        System.out.println(String.format(Locale.ROOT, "%7s %9s %9s %8s %8s %8s %8s %8s %8s %7s %6s %7s %8s %7s %7s %6s",
+                "clients", "up MB/s", "dn MB/s", "up p50", "up p99", "up max", "dn p50", "dn p99", "dn max",
+                "retries", "fails", "srv gc", "gc ms", "max gc", "cli gc", "fds"));
+        for (int clients : clientCounts) {
+            runStep(clients);
+        }
+    }
+
+    /**
+     * Runs every simulated client at once and prints a line for the step.
+     *
+     * @param count the number of simulated clients
+     * @throws Exception if the server stats cannot be read
+     */
+    private void runStep(int count) throws Exception {
+        JSONObject before = stats();
+        long[] clientGc = localGc();
+        final AtomicLong peakFds = new AtomicLong(before.optLong("openFds", -1));
+        final CountDownLatch done = new CountDownLatch(count);
+        List<SimClient> clients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            clients.add(new SimClient(i, done));
+        }
+        Thread sampler = new Thread(new Runnable() {                            // Tracks the descriptor peak while the step runs
+            @Override
+            public void run() {
+                try {
+                    while (done.getCount() > 0) {
+                        long fds = stats().optLong("openFds", -1);
+                        if (fds > peakFds.get()) {
+                            peakFds.set(fds);
+                        }
+                        Thread.sleep(SAMPLE_INTERVAL);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "stats-sampler");
+        sampler.setDaemon(true);
+        for (SimClient client : clients) {
+            client.start();
+        }
+        sampler.start();
+        boolean finished = done.await(STEP_TIMEOUT, TimeUnit.SECONDS);
+        JSONObject after = stats();
+        long[] clientGcAfter = localGc();
+
+        Samples upload = new Samples();
+        Samples download = new Samples();
+        long upStart = Long.MAX_VALUE, upEnd = 0, downStart = Long.MAX_VALUE, downEnd = 0;
+        long retries = 0;
+        int fails = 0;
+        for (SimClient client : clients) {
+            client.close();
+            upload.addAll(client.uploadLatency);
+            download.addAll(client.downloadLatency);
+            retries += client.retries;
+            if (!client.verified) {
+                fails++;
+                continue;
+            }
+            upStart = Math.min(upStart, client.uploadStart);
+            upEnd = Math.max(upEnd, client.uploadEnd);
+            downStart = Math.min(downStart, client.downloadStart);
+            downEnd = Math.max(downEnd, client.downloadEnd);
+        }
+        int passed = count - fails;
+        System.out.println(String.format(Locale.ROOT, "%7d %9.1f %9.1f %8.2f %8.2f %8.2f %8.2f %8.2f %8.2f %7d %6s %7d %8d %7d %7d %6d",
+                count, rate(passed, upStart, upEnd), rate(passed, downStart, downEnd),
+                upload.percentile(50), upload.percentile(99), upload.percentile(100),
+                download.percentile(50), download.percentile(99), download.percentile(100),
+                retries, finished ? String.valueOf(fails) : fails + "!",
+                after.optLong("gcCount") - before.optLong("gcCount"),
+                after.optLong("gcTimeMs") - before.optLong("gcTimeMs"),
+                after.optLong("gcLongestMs"),
+                clientGcAfter[0] - clientGc[0], peakFds.get()));
+    }
+
+    /**
+     * @param files  the number of files moved
+     * @param start  when the first of them started, in nanoseconds
+     * @param end    when the last of them ended, in nanoseconds
+     * @return the aggregate throughput in MB/s
+     */
+    private double rate(int files, long start, long end) {
+        if (files == 0 || end <= start) {
+            return 0;
+        }
+        return (double) files * fileSize / 1e6 / ((end - start) / 1e9);
+    }
+
+    /**
+     * @return the number of collections and the milliseconds collecting in this process
+     */
+    private long[] localGc() {
+        long[] gc = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gc[0] += Math.max(0, collector.getCollectionCount());
+            gc[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return gc;
+    }
+
+    /**
+     * Asks the server for its counters over the control connection.
+     *
+     * @return the counters, empty if the server did not answer
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private JSONObject stats() throws InterruptedException {
+        final BlockingQueue<JSONObject> reply = new ArrayBlockingQueue<>(1);
+        control.emit("request", "stats", new Ack() {
+            @Override
+            public void call(Object... os) {
+                reply.offer(os.length > 0 && os[0] instanceof JSONObject ? (JSONObject) os[0] : new JSONObject());
+            }
+        });
+        JSONObject stats = reply.poll(10, TimeUnit.SECONDS);
+        return stats != null ? stats : new JSONObject();
+    }
+
+    /**
+     * Opens a connection to the server and waits until it is up.
+     *
+     * @return the connected socket
+     * @throws Exception if the server cannot be reached
+     */
+    private Socket connect() throws Exception {
+        IO.Options options = new IO.Options();
+        options.forceNew = true;
+        options.reconnection = false;
+        options.transports = new String[]{WebSocket.NAME};
+        Socket socket = IO.socket(url, options);
+        final CountDownLatch connected = new CountDownLatch(1);
+        socket.on(Socket.EVENT_CONNECT, new Emitter.Listener() {
+            @Override
+            public void call(Object... os) {
+                connected.countDown();
+            }
+        });
+        socket.open();
+        if (!connected.await(30, TimeUnit.SECONDS)) {
+            throw new IOException("Cannot connect to " + url);
+        }
+        socket.emit("set_user", "load-control");
+        return socket;
+    }
+
+    /**
+     * Starts ServerMain in a child process on a free loopback port with a fresh storage directory.
+     *
+     * @return the address of the server
+     * @throws Exception if the server does not start listening
+     */
+    private String startServer() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        File storage = File.createTempFile("load", "");
+        storage.delete();
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-Djava.awt.headless=true");
+        command.add("-cp");
+        command.add(serverClasspath);
+        command.add("server.ServerMain");
+        command.add("--port=" + port);
+        command.add("--storage=" + storage.getPath());
+        for (String arg : serverArgs.trim().split("\\s+")) {
+            if (!arg.isEmpty()) {
+                command.add(arg);
+            }
+        }
+        File log = new File(storage.getPath() + ".log");
+        server = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        System.out.println("Server log " + log + ", storage " + storage);
+        long deadline = System.currentTimeMillis() + 30000;
+        while (System.currentTimeMillis() < deadline) {
+            if (!server.isAlive()) {
+                throw new IOException("Server exited with " + server.exitValue() + ", see " + log);
+            }
+            try (java.net.Socket probe = new java.net.Socket()) {
+                probe.connect(new InetSocketAddress("127.0.0.1", port), 500);
+                return "http://127.0.0.1:" + port;
+            } catch (IOException e) {
+                Thread.sleep(200);                                              // Not listening yet
+            }
+        }
+        throw new IOException("Server did not start listening on " + port + ", see " + log);
+    }
+
+    /**
+     * Closes the control connection and stops the server if it was started here.
+     */
+    private void close() {
+        if (control != null) {
+            control.close();
+        }
+        if (server != null) {
+            server.destroy();
+            try {
+                server.waitFor(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Latency samples in nanoseconds.
+     */
+    private static class Samples {
+
+        private long[] values = new long[1024];
+        private int size;
+
+        synchronized void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        synchronized void addAll(Samples other) {
+            synchronized (other) {
+                for (int i = 0; i < other.size; i++) {
+                    add(other.values[i]);
+                }
+            }
+        }
+
+        /**
+         * @param percent the percentile, 100 for the largest sample
+         * @return the latency at the percentile in milliseconds, 0 without samples
+         */
+        synchronized double percentile(double percent) {
+            if (size == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percent / 100 * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, index))] / 1e6;
+        }
+    }
+
+    /**
+     * One simulated client: uploads a file of random bytes and downloads it again.
+     */
+    private class SimClient {
+
+        private final int index;
+        private final CountDownLatch done;
+        private final byte[] content;
+        private final Samples uploadLatency = new Samples();
+        private final Samples downloadLatency = new Samples();
+        private final Deque<long[]> retry = new ArrayDeque<>();               // Ranges the server refused, sent again first
+        private Socket socket;
+        private long fileID;
+        private int chunk;
+        private int inFlight;
+        private long next;
+        private long acked;
+        private boolean uploaded;
+        private boolean downloading;
+        private long retries;
+        private long uploadStart;
+        private long uploadEnd;
+        private long downloadStart;
+        private long downloadEnd;
+        private volatile boolean verified;
+        private boolean ended;
+
+        SimClient(int index, CountDownLatch done) {
+            this.index = index;
+            this.done = done;
+            this.content = new byte[fileSize];
+            new Random(System.nanoTime() + index).nextBytes(content);          // Unique content, the server must not dedupe it
+        }
+
+        /**
+         * Connects and starts the upload once the connection is open.
+         *
+         * @throws Exception if the address is bad
+         */
+        void start() throws Exception {
+            IO.Options options = new IO.Options();
+            options.forceNew = true;
+            options.reconnection = false;
+            options.transports = new String[]{WebSocket.NAME};
+            socket = IO.socket(url, options);
+            socket.on(Socket.EVENT_CONNECT, new Emitter.Listener() {
+                @Override
+                public void call(Object... os) {
+                    socket.emit("set_user", "load-" + index);
+                    try {
+                        JSONObject page = new JSONObject();
+                        page.put("limit", 100);
+                        socket.emit("list_files", page, new Ack() {
+                            @Override
+                            public void call(Object... os) {
+                                sendInit();
+                            }
+                        });
+                    } catch (JSONException e) {
+                        e.printStackTrace();
+                        end();
+                    }
+                }
+            });
+            socket.on("new_file", new Emitter.Listener() {
+                @Override
+                public void call(Object... os) {
+                    if (os.length > 0 && os[0] instanceof JSONObject
+                            && ((JSONObject) os[0]).optLong("fileID") == fileID) {
+                        startDownload();
+                    }
+                }
+            });
+            socket.on(Socket.EVENT_DISCONNECT, new Emitter.Listener() {
+                @Override
+                public void call(Object... os) {
+                    end();
+                }
+            });
+            socket.open();
+        }
+
+        private void sendInit() {
+            try {
+                JSONObject data = new JSONObject();
+                data.put("fileName", "load-" + index + ".bin");
+                data.put("fileSize", (long) fileSize);
+                data.put("chunkSize", chunkSize);
+                socket.emit("send_file", data, new Ack() {
+                    @Override
+                    public void call(Object... os) {
+                        if (os.length > 2 && Boolean.TRUE.equals(os[0])) {
+                            synchronized (SimClient.this) {
+                                fileID = ((Number) os[1]).longValue();
+                                chunk = Math.min(chunkSize, ((Number) os[2]).intValue());
+                                uploadStart = System.nanoTime();
+                                sendChunks();
+                            }
+                        } else {
+                            end();
+                        }
+                    }
+                });
+            } catch (JSONException e) {
+                e.printStackTrace();
+                end();
+            }
+        }
+
+        /**
+         * Fills the window with chunk frames, refused ranges first.
+         */
+        private synchronized void sendChunks() {
+            while (inFlight < window) {
+                long[] range = retry.poll();
+                if (range == null) {
+                    if (next >= fileSize) {
+                        break;
+                    }
+                    range = new long[]{next, Math.min(fileSize, next + chunk)};
+                    next = range[1];
+                }
+                final long offset = range[0];
+                final int length = (int) (range[1] - range[0]);
+                byte[] frame = ChunkFrame.allocate(fileID, offset, length, 0);
+                System.arraycopy(content, (int) offset, frame, ChunkFrame.HEADER_SIZE, length);
+                ChunkFrame.seal(frame);
+                final long sent = System.nanoTime();
+                inFlight++;
+                socket.emit(ChunkFrame.EVENT, frame, new Ack() {
+                    @Override
+                    public void call(Object... os) {
+                        chunkAcknowledged(offset, length, System.nanoTime() - sent, os);
+                    }
+                });
+            }
+        }
+
+        private synchronized void chunkAcknowledged(long offset, int length, long latency, Object... os) {
+            inFlight--;
+            if (ChunkFrame.isResend(os)) {
+                retries++;
+                retry.add(new long[]{offset, offset + length});
+                sendChunks();
+                return;
+            }
+            if (RetryTimer.isRetry(os)) {
+                retries++;
+                retry.add(new long[]{offset, offset + length});
+                RetryTimer.later(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendChunks();
+                    }
+                });
+                return;
+            }
+            uploadLatency.add(latency);
+            if (os.length == 0 || !Boolean.TRUE.equals(os[0])) {
+                end();                                                          // The server lost the transfer
+                return;
+            }
+            acked += length;
+            if (acked >= fileSize) {
+                uploadEnd = System.nanoTime();
+                sendFinish();
+            } else {
+                sendChunks();
+            }
+        }
+
+        private void sendFinish() {
+            socket.emit(ChunkFrame.EVENT, ChunkFrame.finish(fileID), new Ack() {
+                @Override
+                public void call(Object... os) {
+                    if (RetryTimer.isRetry(os)) {
+                        RetryTimer.later(new Runnable() {
+                            @Override
+                            public void run() {
+                                sendFinish();
+                            }
+                        });
+                    } else {
+                        synchronized (SimClient.this) {
+                            uploaded = true;
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Starts the download once the server announced the file.
+         */
+        private synchronized void startDownload() {
+            if (downloading) {
+                return;
+            }
+            downloading = true;
+            retry.clear();
+            next = 0;
+            acked = 0;
+            inFlight = 0;
+            downloadStart = System.nanoTime();
+            requestChunks();
+        }
+
+        /**
+         * Fills the window with requests for the next ranges of the file.
+         */
+        private synchronized void requestChunks() {
+            while (inFlight < window) {
+                long[] range = retry.poll();
+                if (range == null) {
+                    if (next >= fileSize) {
+                        break;
+                    }
+                    range = new long[]{next, Math.min(fileSize, next + chunk)};
+                    next = range[1];
+                }
+                final long offset = range[0];
+                final int length = (int) (range[1] - range[0]);
+                JSONObject data = new JSONObject();
+                try {
+                    data.put("fileID", fileID);
+                    data.put("length", offset);
+                    data.put("chunkSize", length);
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+                final long sent = System.nanoTime();
+                inFlight++;
+                socket.emit("request_file", data, new Ack() {
+                    @Override
+                    public void call(Object... os) {
+                        chunkReceived(offset, length, System.nanoTime() - sent, os);
+                    }
+                });
+            }
+        }
+
+        private synchronized void chunkReceived(long offset, int length, long latency, Object... os) {
+            inFlight--;
+            if (ChunkFrame.isResend(os)) {
+                retries++;
+                retry.add(new long[]{offset, offset + length});
+                sendChunks();
+                return;
+            }
+            if (RetryTimer.isRetry(os)) {
+                retries++;
+                retry.add(new long[]{offset, offset + length});
+                RetryTimer.later(new Runnable() {
+                    @Override
+                    public void run() {
+                        requestChunks();
+                    }
+                });
+                return;
+            }
+            downloadLatency.add(latency);
+            if (os.length == 0 || !(os[0] instanceof byte[])) {
+                end();                                                          // The server has nothing before the end
+                return;
+            }
+            byte[] data = (byte[]) os[0];
+            if (!ByteBuffer.wrap(content, (int) offset, data.length).equals(ByteBuffer.wrap(data))) {
+                end();                                                          // Downloaded bytes differ from the upload
+                return;
+            }
+            if (data.length < length) {
+                retry.add(new long[]{offset + data.length, offset + length});
+            }
+            acked += data.length;
+            if (acked >= fileSize) {
+                downloadEnd = System.nanoTime();
+                verified = uploaded;
+                end();
+            } else {
+                requestChunks();
+            }
+        }
+
+        /**
+         * Counts the client as done, once.
+         */
+        private synchronized void end() {
+            if (!ended) {
+                ended = true;
+                done.countDown();
+            }
+        }
+
+        void close() {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+}
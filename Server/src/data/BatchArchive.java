@@ -0,0 +1,134 @@
+package data;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class reads the archive of a batch upload, many small files packed by a client into
+ * one upload. It walks the files in order:
+ * <pre>
+ * magic "CBAT" (4 bytes) | file count (4 bytes) |
+ * per file: name length (2 bytes) | name (UTF-8) | size (8 bytes) | content
+ * </pre>
+ */
+public class BatchArchive implements Closeable {
+
+    public static final int MAGIC = 0x43424154;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final DataInputStream in;
+    private final long length;
+    private final int count;
+    private long position;
+    private int read;
+    private String name;
+    private long size;
+
+    /**
+     * @param archive the uploaded archive.
+     * @throws IOException if the archive cannot be opened or is not a batch archive.
+     */
+    public BatchArchive(File archive) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(archive), 1024 * 1024));
+        length = archive.length();
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a batch archive");
+            }
+            count = in.readInt();
+            position = 8;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Moves to the next file, the content of the current one must have been copied.
+     * @return false if there is no file left.
+     * @throws IOException if the archive is damaged.
+     */
+    public boolean next() throws IOException {
+        if (read == count) {
+            return false;
+        }
+        byte[] bytes;
+        try {
+            bytes = new byte[in.readUnsignedShort()];
+            in.readFully(bytes);
+            size = in.readLong();
+        } catch (EOFException e) {
+            throw new IOException("Batch archive ends before file " + read, e);
+        }
+        name = new String(bytes, StandardCharsets.UTF_8);
+        position += 10 + bytes.length;
+        if (size < 0 || size > length - position) {
+            throw new IOException("Batch archive entry " + read + " has a bad size " + size);
+        }
+        read++;
+        return true;
+    }
+
+    /**
+     * Writes the content of the current file.
+     * @param target the file to write it to.
+     * @return the SHA-256 of the content as lowercase hex.
+     * @throws IOException if the archive cannot be read or the target written.
+     */
+    public String copy(File target) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (OutputStream out = new FileOutputStream(target)) {
+            long copied = 0;
+            while (copied < size) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, size - copied));
+                if (n < 0) {
+                    throw new IOException("Batch archive ends inside " + name);
+                }
+                digest.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+                copied += n;
+            }
+        }
+        position += size;
+        byte[] bytes = digest.digest();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
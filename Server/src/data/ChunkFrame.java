@@ -0,0 +1,133 @@
+package data;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * This class represents one chunk of an upload sent as a binary frame instead of a JSON object.
+ * The frame starts with a fixed header, big endian, followed by the payload:
+ * fileID (8 bytes), offset (8 bytes), length (4 bytes), flags (1 byte), checksum (4 bytes),
+ * raw length (4 bytes), payload (length bytes).
+ * The payload is not copied out of the frame, writers read it at getPayloadOffset().
+ * The checksum is the CRC32 of the payload and is only checked if FLAG_CHECKSUM is set.
+ * With FLAG_DEFLATE the payload is compressed and holds raw length bytes of the file.
+ */
+public class ChunkFrame {
+
+    public static final int HEADER_SIZE = 29;
+    public static final int FLAG_FINISH = 1;
+    public static final int FLAG_CHECKSUM = 2;
+    public static final int FLAG_DEFLATE = 4;
+    //  Most file bytes one compressed chunk may expand to
+    public static final int MAX_RAW_LENGTH = 16 * 1024 * 1024;
+
+    public long getFileID() {
+        return fileID;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isFinish() {
+        return (flags & FLAG_FINISH) != 0;
+    }
+
+    /**
+     * @return the number of file bytes the payload holds, the length unless it is compressed.
+     */
+    public int getRawLength() {
+        return rawLength;
+    }
+
+    public boolean isCompressed() {
+        return (flags & FLAG_DEFLATE) != 0;
+    }
+
+    public int getChecksum() {
+        return checksum;
+    }
+
+    public boolean hasChecksum() {
+        return (flags & FLAG_CHECKSUM) != 0;
+    }
+
+    public byte[] getFrame() {
+        return frame;
+    }
+
+    public int getPayloadOffset() {
+        return HEADER_SIZE;
+    }
+
+    private final byte[] frame;
+    private final long fileID;
+    private final long offset;
+    private final int length;
+    private final int flags;
+    private final int checksum;
+    private final int rawLength;
+
+    private ChunkFrame(byte[] frame, long fileID, long offset, int length, int flags, int checksum, int rawLength) {
+        this.frame = frame;
+        this.fileID = fileID;
+        this.offset = offset;
+        this.length = length;
+        this.flags = flags;
+        this.checksum = checksum;
+        this.rawLength = rawLength;
+    }
+
+    /**
+     * @return true if the payload matches its checksum, or the frame carries none.
+     */
+    public boolean isIntact() {
+        if (!hasChecksum()) {
+            return true;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(frame, HEADER_SIZE, length);
+        return (int) crc.getValue() == checksum;
+    }
+
+    /**
+     * Reads the header of a frame.
+     * @param frame the whole frame as received.
+     * @return the chunk, backed by the frame.
+     * @throws IOException if the frame is shorter than its header says.
+     */
+    public static ChunkFrame decode(byte[] frame) throws IOException {
+        if (frame == null || frame.length < HEADER_SIZE) {
+            throw new IOException("Chunk frame too short");
+        }
+        long fileID = readLong(frame, 0);
+        long offset = readLong(frame, 8);
+        int length = readInt(frame, 16);
+        int flags = frame[20] & 0xFF;
+        int checksum = readInt(frame, 21);
+        int rawLength = (flags & FLAG_DEFLATE) != 0 ? readInt(frame, 25) : length;
+        if (length < 0 || length > frame.length - HEADER_SIZE) {
+            throw new IOException("Chunk frame length " + length + " does not match frame of " + frame.length + " bytes");
+        }
+        if (rawLength < 0 || rawLength > MAX_RAW_LENGTH) {
+            throw new IOException("Chunk frame raw length " + rawLength + " out of range");
+        }
+        return new ChunkFrame(frame, fileID, offset, length, flags, checksum, rawLength);
+    }
+
+    private static long readLong(byte[] b, int i) {
+        return ((long) readInt(b, i) << 32) | (readInt(b, i + 4) & 0xFFFFFFFFL);
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) << 24 | (b[i + 1] & 0xFF) << 16 | (b[i + 2] & 0xFF) << 8 | (b[i + 3] & 0xFF);
+    }
+}
@@ -1,21 +1,15 @@
 package data;
 
 import com.corundumstudio.socketio.SocketIOClient;
-import java.awt.Component;
 import java.io.IOException;
-import java.util.HashMap;
-import javax.swing.JTable;
-import swing.PanelStatus;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * DataClient represents a client connected to the server, handling file transfers and updating the UI.
+ * DataClient represents a client connected to the server and the file transfers it is running.
  */
 public class DataClient {
 
-    public PanelStatus getStatus() {
-        return status;
-    }
-
     public SocketIOClient getClient() {
         return client;
     }
@@ -33,61 +27,80 @@ public class DataClient {
     }
 
     /**
-     * Constructs a DataClient object with the specified SocketIO client, name, and table.
-     * Initializes the panel status and associates the table.
+     * Constructs a DataClient object with the specified SocketIO client and name.
      * @param client the SocketIO client object.
      * @param name the name of the client.
-     * @param table the JTable to be associated with this client.
      */
-    public DataClient(SocketIOClient client, String name, JTable table) {
+    public DataClient(SocketIOClient client, String name) {
         this.client = client;
         this.name = name;
-        this.status = new PanelStatus();
-        this.table = table;
     }
 
     public DataClient() {
     }
 
     private SocketIOClient client;
-    private String name;
-    // Key integer is fileID
-    // Hash to store multiple transfers
-    private final HashMap<Integer, DataWriter> list = new HashMap<>();
-    private PanelStatus status;
-    private JTable table;
+    private volatile String name;
+    // Key long is fileID
+    // Hash to store multiple transfers, chunks may arrive on other sockets of the same user
+    private final Map<Long, DataWriter> list = new ConcurrentHashMap<>();
 
     /**
-     * Adds a DataWriter for a specific file ID and updates the panel status and table row height.
+     * Adds a DataWriter for a specific file ID.
      * @param data the DataWriter to be added.
      * @param fileID the ID of the file.
      */
-    public void addWrite(DataWriter data, int fileID) {
+    public void addWrite(DataWriter data, long fileID) {
         list.put(fileID, data);
-        status.addItem(fileID, data.getFile().getName(), data.getMaxFileSize());
-        // Update table row height
-        autoRowHeight(table, 3);
     }
 
     /**
-     * Writes data to the file associated with the specified file ID and updates the panel status.
+     * Writes data to the file associated with the specified file ID.
      * @param data the data to be written.
+     * @param offset the position of the data in the file, or a negative value to append.
      * @param fileID the ID of the file.
+     * @return the DataWriter the data was written to.
      * @throws IOException if an I/O error occurs.
      */
-    public void writeFile(byte[] data, int fileID) throws IOException {
-        list.get(fileID).writeFile(data);
-        status.updateStatus(fileID, (int) list.get(fileID).getPercentage());
-        table.repaint();
+    public DataWriter writeFile(byte[] data, long offset, long fileID) throws IOException {
+        DataWriter writer = list.get(fileID);
+        writer.writeFile(data, offset);
+        return writer;
     }
 
     /**
-     * Closes the DataWriter associated with the specified file ID.
+     * Writes the payload of a binary chunk frame to the file it belongs to, decompressing
+     * it first if it is compressed.
+     * @param frame the chunk frame.
+     * @return the DataWriter the data was written to.
+     * @throws IOException if an I/O error occurs.
+     */
+    public DataWriter writeFile(ChunkFrame frame) throws IOException {
+        DataWriter writer = list.get(frame.getFileID());
+        if (frame.isCompressed()) {
+            byte[] raw = Compression.inflate(frame.getFrame(), frame.getPayloadOffset(), frame.getLength(), frame.getRawLength());
+            writer.writeFile(raw, 0, raw.length, frame.getOffset());
+        } else {
+            writer.writeFile(frame.getFrame(), frame.getPayloadOffset(), frame.getLength(), frame.getOffset());
+        }
+        return writer;
+    }
+
+    /**
+     * Closes the DataWriter associated with the specified file ID and forgets it.
      * @param fileID the ID of the file.
      * @throws IOException if an I/O error occurs.
      */
-    public void closeWriter(int fileID) throws IOException {
-        list.get(fileID).close();
+    public void closeWriter(long fileID) throws IOException {
+        list.remove(fileID).close();
+    }
+
+    /**
+     * @param fileID the ID of the file.
+     * @return the DataWriter receiving the file, or null if there is none.
+     */
+    public DataWriter getWriter(long fileID) {
+        return list.get(fileID);
     }
 
     /**
@@ -99,31 +112,13 @@ public class DataClient {
         return new Object[]{this, row, name};
     }
 
-    /**
-     * Adjusts the row height of the specified table based on the preferred height of the cells in the specified columns.
-     * @param table the JTable whose row height is to be adjusted.
-     * @param cols the columns to consider for height adjustment.
-     */
-    private void autoRowHeight(JTable table, int... cols) {
-        for (int row = 0; row < table.getRowCount(); row++) {
-            int rowHeight = table.getRowHeight();
-            for (int col : cols) {
-                Component comp = table.prepareRenderer(table.getCellRenderer(row, col), row, col);
-                if (comp.getPreferredSize().height > rowHeight) {
-                    rowHeight = comp.getPreferredSize().height;
-                }
-            }
-            table.setRowHeight(row, rowHeight);
-        }
-    }
-
     /**
      * Retrieves the length of the file associated with the specified file ID.
      * @param fileID the ID of the file.
      * @return the length of the file in bytes.
      * @throws IOException if an I/O error occurs.
      */
-    public long getFileLength(int fileID) throws IOException {
+    public long getFileLength(long fileID) throws IOException {
         return list.get(fileID).getFileLength();
     }
 
@@ -133,7 +128,7 @@ public class DataClient {
      * @return the DataFileServer object.
      * @throws IOException if an I/O error occurs.
      */
-    public DataFileServer getDataFileServer(int fileID) throws IOException {
+    public DataFileServer getDataFileServer(long fileID) throws IOException {
         DataWriter data = list.get(fileID);
         String fileName = data.getFile().getName();
         return new DataFileServer(fileID, fileName.substring(fileName.indexOf("-", 0) + 1), data.getMaxFileSize(), data.getFileLength(), data.getFile());
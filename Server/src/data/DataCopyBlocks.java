@@ -0,0 +1,54 @@
+package data;
+
+import java.util.List;
+
+/**
+ * This class represents the part of a delta upload the server has already. Each copy is
+ * {offset, block, count}: count blocks of the base file, starting at block, go to offset
+ * in the file being uploaded. The block size is the one the server signed the base with.
+ */
+public class DataCopyBlocks {
+
+    public long getFileID() {
+        return fileID;
+    }
+
+    public void setFileID(long fileID) {
+        this.fileID = fileID;
+    }
+
+    public long getBase() {
+        return base;
+    }
+
+    public void setBase(long base) {
+        this.base = base;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    public List<long[]> getCopies() {
+        return copies;
+    }
+
+    public void setCopies(List<long[]> copies) {
+        this.copies = copies;
+    }
+
+    /**
+     * Default constructor for DataCopyBlocks.
+     */
+    public DataCopyBlocks() {
+    }
+
+    private long fileID;
+    private long base;
+    private int blockSize;
+    private List<long[]> copies;
+}
@@ -2,17 +2,26 @@ package data;
 
 /**
  * This class represents the data being sent of a file, including the file ID, data, and whether the transfer is complete.
+ * The offset tells where the data belongs in the file, a negative offset appends the data at the end.
  */
 public class DataFileSending {
 
-    public int getFileID() {
+    public long getFileID() {
         return fileID;
     }
 
-    public void setFileID(int fileID) {
+    public void setFileID(long fileID) {
         this.fileID = fileID;
     }
 
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
     public byte[] getData() {
         return data;
     }
@@ -35,7 +44,7 @@ public class DataFileSending {
      * @param data the data being sent.
      * @param finish the completion status of the transfer.
      */
-    public DataFileSending(int fileID, byte[] data, boolean finish) {
+    public DataFileSending(long fileID, byte[] data, boolean finish) {
         this.fileID = fileID;
         this.data = data;
         this.finish = finish;
@@ -47,7 +56,8 @@ public class DataFileSending {
     public DataFileSending() {
     }
 
-    private int fileID;
+    private long fileID;
+    private long offset = -1;
     private byte[] data;
     private boolean finish;
 }
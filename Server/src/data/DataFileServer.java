@@ -8,11 +8,11 @@ import java.io.File;
  */
 public class DataFileServer {
 
-    public int getFileID() {
+    public long getFileID() {
         return fileID;
     }
 
-    public void setFileID(int fileID) {
+    public void setFileID(long fileID) {
         this.fileID = fileID;
     }
 
@@ -40,6 +40,18 @@ public class DataFileServer {
         this.fileSizeLength = fileSizeLength;
     }
 
+    /**
+     * @return the SHA-256 of the content as lowercase hex, clients check downloads against it,
+     * null if it is not known.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
     public File getOutPutPath() {
         return outPutPath;
     }
@@ -56,7 +68,7 @@ public class DataFileServer {
      * @param fileSizeLength the size of the file in bytes.
      * @param outPutPath the output path where the file is stored.
      */
-    public DataFileServer(int fileID, String fileName, String fileSize, long fileSizeLength, File outPutPath) {
+    public DataFileServer(long fileID, String fileName, String fileSize, long fileSizeLength, File outPutPath) {
         this.fileID = fileID;
         this.fileName = fileName;
         this.fileSize = fileSize;
@@ -70,9 +82,10 @@ public class DataFileServer {
     public DataFileServer() {
     }
 
-    private int fileID;
+    private long fileID;
     private String fileName;
     private String fileSize;
     private long fileSizeLength;
     private File outPutPath;
+    private String hash;
 }
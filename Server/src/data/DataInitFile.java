@@ -2,6 +2,9 @@ package data;
 
 /**
  * This class initializes file data, storing the file name and file size.
+ * The chunk size is the largest chunk the client would like to send, 0 if it did not ask.
+ * The hash is the SHA-256 of the content as hex, so the server can skip storing it twice.
+ * The compression is the one the client would like to send chunks with, null for none.
  */
 public class DataInitFile {
 
@@ -21,6 +24,38 @@ public class DataInitFile {
         this.fileSize = fileSize;
     }
 
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    public boolean isBatch() {
+        return batch;
+    }
+
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
     /**
      * Constructs a DataInitFile object with the specified file name and size.
      * @param fileName the name of the file.
@@ -39,4 +74,8 @@ public class DataInitFile {
 
     private String fileName;
     private long fileSize;
+    private int chunkSize;
+    private String compression;
+    private String hash;
+    private boolean batch;
 }
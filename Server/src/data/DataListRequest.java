@@ -0,0 +1,71 @@
+package data;
+
+/**
+ * This class represents a request for one page of the file catalog. The sort is "name",
+ * "size" or "date", the prefix matches the start of file names and the search any part of
+ * them, both ignoring case. The cursor is the one the previous page returned, null for the
+ * first page.
+ */
+public class DataListRequest {
+
+    public String getSort() {
+        return sort;
+    }
+
+    public void setSort(String sort) {
+        this.sort = sort;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public void setDescending(boolean descending) {
+        this.descending = descending;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String getSearch() {
+        return search;
+    }
+
+    public void setSearch(String search) {
+        this.search = search;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Default constructor for DataListRequest.
+     */
+    public DataListRequest() {
+    }
+
+    private String sort;
+    private boolean descending;
+    private String prefix;
+    private String search;
+    private String cursor;
+    private int limit;
+}
@@ -2,14 +2,16 @@ package data;
 
 /**
  * This class represents a request for a file, storing the file ID and the length of the requested data.
+ * The chunk size is the largest chunk the client wants back, 0 if it did not ask.
+ * The compression is the one the client can take chunks in, null for none.
  */
 public class DataRequestFile {
 
-    public int getFileID() {
+    public long getFileID() {
         return fileID;
     }
 
-    public void setFileID(int fileID) {
+    public void setFileID(long fileID) {
         this.fileID = fileID;
     }
 
@@ -21,12 +23,28 @@ public class DataRequestFile {
         this.length = length;
     }
 
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
     /**
      * Constructs a DataRequestFile object with the specified file ID and data length.
      * @param fileID the ID of the file.
      * @param length the length of the requested data in bytes.
      */
-    public DataRequestFile(int fileID, long length) {
+    public DataRequestFile(long fileID, long length) {
         this.fileID = fileID;
         this.length = length;
     }
@@ -37,6 +55,8 @@ public class DataRequestFile {
     public DataRequestFile() {
     }
 
-    private int fileID;
+    private long fileID;
     private long length;
+    private int chunkSize;
+    private String compression;
 }
@@ -3,11 +3,16 @@ package data;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.DecimalFormat;
 
 /**
  * This class handles writing data to a file, including managing file size and 
  * converting file size to formats that are easier to read.
+ * Chunks are written at their offset and the received ranges are tracked in a RangeSet.
+ * If the client sent the SHA-256 of the file, the file is hashed while it is written and
+ * checked against it with verify() once complete.
  */
 public class DataWriter {
 
@@ -35,6 +40,46 @@ public class DataWriter {
         this.accFile = accFile;
     }
 
+    public RangeSet getReceived() {
+        return received;
+    }
+
+    public String getExpectedHash() {
+        return expectedHash;
+    }
+
+    /**
+     * @param expectedHash the SHA-256 the client computed, null if it sent none.
+     * @throws IOException if the JVM has no SHA-256.
+     */
+    public void setExpectedHash(String expectedHash) throws IOException {
+        this.expectedHash = expectedHash;
+        this.hash = expectedHash == null ? null : new IncrementalHash();
+    }
+
+    /**
+     * @return true if the file is the archive of a batch upload, unpacked once it is complete.
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * @return the name the file is listed under once complete, a relative path if it was
+     * uploaded from a directory, or null to list it under the name of its file.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
     /**
      * Constructs a DataWriter object with the specified file and size.
      * Opens the file in read-write mode.
@@ -44,6 +89,7 @@ public class DataWriter {
      */
     public DataWriter(File file, long fileSize) throws IOException {
         accFile = new RandomAccessFile(file, "rw");
+        channel = accFile.getChannel();
         this.file = file;
         this.fileSize = fileSize;
     }
@@ -51,17 +97,103 @@ public class DataWriter {
     private File file;
     private long fileSize;
     private RandomAccessFile accFile;
+    private FileChannel channel;
+    private final RangeSet received = new RangeSet();
+    private String expectedHash;
+    private IncrementalHash hash;
+    private boolean batch;
+    private String path;
 
     /**
-     * Writes data to the file at the end.
+     * Writes data to the file after the last byte received so far.
      * @param data the data to be written.
-     * @return the new length of the file.
+     * @return the number of bytes received so far.
      * @throws IOException if an I/O error occurs.
      */
-    public synchronized long writeFile(byte[] data) throws IOException {
-        accFile.seek(accFile.length());
-        accFile.write(data);
-        return accFile.length();
+    public long writeFile(byte[] data) throws IOException {
+        return writeFile(data, received.getEnd());
+    }
+
+    /**
+     * Writes data to the file at the given offset with a positional write, so chunks of
+     * the same file can be written concurrently and in any order.
+     * @param data the data to be written.
+     * @param offset the position of the data in the file, or a negative value to append.
+     * @return the number of bytes received so far.
+     * @throws IOException if an I/O error occurs.
+     */
+    public long writeFile(byte[] data, long offset) throws IOException {
+        if (offset < 0) {
+            return writeFile(data);
+        }
+        return writeFile(data, 0, data.length, offset);
+    }
+
+    /**
+     * Writes part of an array to the file at the given offset, used for binary chunk frames
+     * whose payload follows a header in the same array.
+     * @param data the array holding the data.
+     * @param start the index of the first byte to write.
+     * @param length the number of bytes to write.
+     * @param offset the position of the data in the file.
+     * @return the number of bytes received so far.
+     * @throws IOException if an I/O error occurs or the data does not fit in the file.
+     */
+    public long writeFile(byte[] data, int start, int length, long offset) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > fileSize) {
+            //  a chunk outside the declared size would grow the file and the received ranges
+            throw new IOException("Chunk at " + offset + " of " + length + " bytes is outside the file of " + fileSize + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, start, length);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        received.add(offset, offset + length);
+        if (hash != null) {
+            hash.update(channel, data, start, length, offset, received.getContiguous());
+        }
+        return received.getCovered();
+    }
+
+    /**
+     * @return the SHA-256 of the file as lowercase hex, or null if the file is not complete
+     * or the client sent no hash to check it against.
+     * @throws IOException if an I/O error occurs.
+     */
+    public String getHash() throws IOException {
+        if (hash == null || !received.isComplete(fileSize)) {
+            return null;
+        }
+        return hash.finish(channel, fileSize);
+    }
+
+    /**
+     * Checks the complete file against the hash the client sent. The hash is finished while
+     * the file is still open, later calls return the result without reading it.
+     * @return true if the hashes match or the client sent none.
+     * @throws IOException if an I/O error occurs.
+     */
+    public boolean verify() throws IOException {
+        return expectedHash == null || expectedHash.equals(getHash());
+    }
+
+    /**
+     * Forgets every received range, so the whole file is sent again.
+     */
+    public void reset() {
+        received.clear();
+        if (hash != null) {
+            hash.reset();
+        }
+    }
+
+    /**
+     * Forces the data written so far to the storage device.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void force() throws IOException {
+        channel.force(false);
     }
 
     public void close() throws IOException {
@@ -72,23 +204,29 @@ public class DataWriter {
         return convertFile(fileSize);
     }
 
-    public String getCurrentFileSize() throws IOException {
-        return convertFile(accFile.length());
+    public String getCurrentFileSize() {
+        return convertFile(received.getCovered());
     }
 
     /**
      * @return the percentage of the file written.
-     * @throws IOException if an I/O error occurs.
      */
-    public double getPercentage() throws IOException {
+    public double getPercentage() {
+        if (fileSize <= 0) {
+            return 100;
+        }
         double percentage;
-        long filePointer = accFile.length();
+        long filePointer = received.getCovered();
         percentage = filePointer * 100 / fileSize;
         return percentage;
     }
 
-    public long getFileLength() throws IOException {
-        return accFile.length();
+    /**
+     * @return the number of bytes received without a gap from the start of the file,
+     * which is where a paused upload resumes.
+     */
+    public long getFileLength() {
+        return received.getContiguous();
     }
 
     /**
@@ -96,7 +234,7 @@ public class DataWriter {
      * @param bytes the file size in bytes.
      * @return the file size in a human-readable format.
      */
-    private String convertFile(double bytes) {
+    public static String convertFile(double bytes) {
         String[] fileSizeUnits = {"bytes", "KB", "MB", "GB", "TB", "PB", "EB", "ZB", "YB"};
         String sizeToReturn;
         DecimalFormat df = new DecimalFormat("0.#");
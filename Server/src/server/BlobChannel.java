@@ -0,0 +1,98 @@
+package server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * BlobChannel reads the content of a blob from start to end, whether the blob is stored as
+ * it is or as a CompressedBlob. It is meant for one reader walking the content in order,
+ * the block a compressed read last landed in is kept inflated for the next read.
+ */
+public class BlobChannel implements Closeable {
+
+    private final FileChannel channel;
+    private final CompressedBlob index;
+    private final long size;
+    private int cachedBlock = -1;
+    private byte[] cached;
+
+    private BlobChannel(FileChannel channel, CompressedBlob index, long size) {
+        this.channel = channel;
+        this.index = index;
+        this.size = size;
+    }
+
+    /**
+     * @param blob a blob, compressed or not.
+     * @return a channel reading the content of the blob.
+     * @throws IOException if the blob cannot be opened.
+     */
+    public static BlobChannel open(File blob) throws IOException {
+        FileChannel channel = FileChannel.open(blob.toPath(), StandardOpenOption.READ);
+        try {
+            if (CompressedBlob.isCompressed(blob)) {
+                CompressedBlob index = CompressedBlob.open(channel);
+                return new BlobChannel(channel, index, index.getRawSize());
+            }
+            return new BlobChannel(channel, null, channel.size());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the size of the content.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Reads content into an array, as much as is asked for unless the content ends first.
+     * @param data the array to read into.
+     * @param start the index in the array to read to.
+     * @param length the number of bytes to read.
+     * @param position the offset in the content to read from.
+     * @return the number of bytes read, -1 if position is at the end of the content.
+     * @throws IOException if the blob cannot be read.
+     */
+    public int read(byte[] data, int start, int length, long position) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        int count = (int) Math.min(length, size - position);
+        if (index == null) {
+            ByteBuffer buffer = ByteBuffer.wrap(data, start, count);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                    throw new IOException("Blob ends before " + size + " bytes");
+                }
+            }
+            return count;
+        }
+        int copied = 0;
+        while (copied < count) {
+            long at = position + copied;
+            int block = (int) (at / CompressedBlob.BLOCK_SIZE);
+            if (block != cachedBlock) {
+                cached = index.readBlock(channel, block);
+                cachedBlock = block;
+            }
+            int from = (int) (at % CompressedBlob.BLOCK_SIZE);
+            int n = Math.min(cached.length - from, count - copied);
+            System.arraycopy(cached, from, data, start + copied, n);
+            copied += n;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,191 @@
+package server;
+
+import data.Compression;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * BlobStore keeps the content of stored files once, named by the SHA-256 of the content.
+ * Blobs live under blobs/&lt;first two hex digits&gt;/&lt;hash&gt; in the storage directory, so
+ * the filesystem is the index and the same content uploaded many times takes its size once.
+ * When the server stores compressed, a compressible blob is kept as a CompressedBlob named
+ * &lt;hash&gt;.z instead.
+ */
+public class BlobStore {
+
+    public static final String DIRECTORY = "blobs";
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File root;
+    private final boolean compress;
+
+    /**
+     * @param storageRoot the storage directory of the server.
+     */
+    public BlobStore(File storageRoot) {
+        this(storageRoot, false);
+    }
+
+    /**
+     * @param storageRoot the storage directory of the server.
+     * @param compress true to keep compressible blobs compressed.
+     */
+    public BlobStore(File storageRoot, boolean compress) {
+        this.root = new File(storageRoot, DIRECTORY);
+        this.compress = compress;
+    }
+
+    /**
+     * @param hash a value sent by a client.
+     * @return true if the value is a lowercase hex SHA-256, which is safe to use in a path.
+     */
+    public static boolean isHash(String hash) {
+        if (hash == null || hash.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param hash the SHA-256 of the content.
+     * @return the blob holding the content, or null if it is not stored.
+     */
+    public File find(String hash) {
+        if (!isHash(hash)) {
+            return null;
+        }
+        File blob = file(hash);
+        if (blob.isFile()) {
+            return blob;
+        }
+        blob = new File(blob.getPath() + CompressedBlob.SUFFIX);
+        return blob.isFile() ? blob : null;
+    }
+
+    /**
+     * @param blob a blob of this store, compressed or not.
+     * @return the SHA-256 of its content, which names it.
+     */
+    public static String hashOf(File blob) {
+        String name = blob.getName();
+        return CompressedBlob.isCompressed(blob) ? name.substring(0, name.length() - CompressedBlob.SUFFIX.length()) : name;
+    }
+
+    /**
+     * @param blob a blob of this store.
+     * @return the path of the blob relative to the storage directory.
+     */
+    public String relativePath(File blob) {
+        return DIRECTORY + "/" + blob.getParentFile().getName() + "/" + blob.getName();
+    }
+
+    /**
+     * Moves a finished upload into the store. If the content is already stored the upload
+     * is deleted and the existing blob is used.
+     * @param upload the file the upload was written to.
+     * @return the blob holding the content.
+     * @throws IOException if the upload cannot be read or moved.
+     */
+    public File ingest(File upload) throws IOException {
+        return ingest(upload, null);
+    }
+
+    /**
+     * Moves a finished upload into the store under a hash computed while it was written,
+     * so the file is not read again.
+     * @param upload the file the upload was written to.
+     * @param hash the SHA-256 of the upload, null to compute it here.
+     * @return the blob holding the content.
+     * @throws IOException if the upload cannot be read or moved.
+     */
+    public File ingest(File upload, String hash) throws IOException {
+        String name = isHash(hash) ? hash : hash(upload);
+        File blob = file(name);
+        synchronized (this) {
+            File stored = find(name);
+            if (stored != null) {
+                Files.delete(upload.toPath());
+                return stored;
+            }
+            File dir = blob.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create blob directory " + dir);
+            }
+            if (compress && isCompressible(upload)) {
+                File packed = new File(blob.getPath() + CompressedBlob.SUFFIX);
+                if (CompressedBlob.compress(upload, packed)) {
+                    Files.delete(upload.toPath());
+                    return packed;
+                }
+            }
+            Files.move(upload.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        return blob;
+    }
+
+    /**
+     * Looks at the start of a file to decide if it is worth compressing.
+     * @param file the file.
+     * @return true if the start of the file is not compressed already.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean isCompressible(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer sample = ByteBuffer.allocate((int) Math.min(Compression.SAMPLE_SIZE, channel.size()));
+            while (sample.hasRemaining() && channel.read(sample, sample.position()) >= 0) {
+            }
+            return Compression.isCompressible(sample.array(), 0, sample.position());
+        }
+    }
+
+    /**
+     * Computes the SHA-256 of a file.
+     * @param file the file.
+     * @return the hash as lowercase hex.
+     * @throws IOException if the file cannot be read.
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private File file(String hash) {
+        return new File(new File(root, hash.substring(0, 2)), hash);
+    }
+}
@@ -0,0 +1,77 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * BlockSignatures describes a stored file block by block, so a client re-uploading a
+ * modified version can tell which of its blocks the server has already. Each full block
+ * gets the rsync weak checksum, which the client can roll over its file a byte at a time,
+ * and an MD5 to confirm a weak match. A signature is SIGNATURE_SIZE bytes:
+ * <pre>
+ * weak checksum (4 bytes) | MD5 (16 bytes)
+ * </pre>
+ * A last block shorter than the block size gets no signature and is always sent again.
+ */
+public class BlockSignatures {
+
+    public static final int SIGNATURE_SIZE = 20;
+    public static final int MIN_BLOCK_SIZE = 4 * 1024;
+    public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    //  block size grows with the file to keep the signatures of a large file small
+    private static final int TARGET_BLOCKS = 16 * 1024;
+
+    /**
+     * @param size the size of a file.
+     * @return the block size used for the file, a power of two.
+     */
+    public static int blockSize(long size) {
+        long target = Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size / TARGET_BLOCKS));
+        return Integer.highestOneBit((int) target);
+    }
+
+    /**
+     * Computes the rsync weak checksum of a block.
+     * @param data the array holding the block.
+     * @param start the index of the first byte of the block.
+     * @param length the length of the block.
+     * @return the low 16 bits hold the sum of the bytes, the high 16 bits the weighted sum.
+     */
+    public static int weak(byte[] data, int start, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[start + i] & 0xFF;
+            b += (length - i) * (data[start + i] & 0xFF);
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * Reads a blob once and computes the signatures of its full blocks.
+     * @param blob the content to sign.
+     * @param blockSize the block size, see blockSize(long).
+     * @return the signatures, one after the other in block order.
+     * @throws IOException if the blob cannot be read.
+     */
+    public static byte[] compute(BlobChannel blob, int blockSize) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        int blocks = (int) (blob.size() / blockSize);
+        ByteBuffer signatures = ByteBuffer.allocate(blocks * SIGNATURE_SIZE);
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < blocks; i++) {
+            blob.read(block, 0, blockSize, (long) i * blockSize);
+            signatures.putInt(weak(block, 0, blockSize));
+            md5.update(block, 0, blockSize);
+            signatures.put(md5.digest());
+        }
+        return signatures.array();
+    }
+}
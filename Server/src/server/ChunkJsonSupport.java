@@ -0,0 +1,78 @@
+package server;
+
+import com.corundumstudio.socketio.AckCallback;
+import com.corundumstudio.socketio.protocol.AckArgs;
+import com.corundumstudio.socketio.protocol.Event;
+import com.corundumstudio.socketio.protocol.JacksonJsonSupport;
+import com.corundumstudio.socketio.protocol.JsonSupport;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import data.ChunkFrame;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ChunkJsonSupport decodes the binary chunk event with Jackson's streaming parser and hands
+ * the listener a ChunkFrame, without going through databind. The binary attachment arrives
+ * inlined as base64, the parser decodes it straight into the frame array. Every other event
+ * and all outgoing packets go to the default Jackson support.
+ */
+public class ChunkJsonSupport implements JsonSupport {
+
+    public static final String CHUNK_EVENT = "chunk";
+
+    private final JsonSupport delegate = new JacksonJsonSupport();
+    private final JsonFactory factory = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    @Override
+    public <T> T readValue(String namespaceName, ByteBufInputStream src, Class<T> valueType) throws IOException {
+        if (valueType == Event.class) {
+            src.mark(0);
+            JsonParser parser = factory.createParser((InputStream) src);
+            try {
+                if (parser.nextToken() == JsonToken.START_ARRAY
+                        && parser.nextToken() == JsonToken.VALUE_STRING
+                        && CHUNK_EVENT.equals(parser.getText())
+                        && parser.nextToken() == JsonToken.VALUE_STRING) {
+                    List<Object> args = new ArrayList<>(1);
+                    args.add(ChunkFrame.decode(parser.getBinaryValue()));
+                    return valueType.cast(new Event(CHUNK_EVENT, args));
+                }
+            } finally {
+                parser.close();
+            }
+            src.reset();                                //  not a chunk, let databind read it from the start
+        }
+        return delegate.readValue(namespaceName, src, valueType);
+    }
+
+    @Override
+    public AckArgs readAckArgs(ByteBufInputStream src, AckCallback<?> callback) throws IOException {
+        return delegate.readAckArgs(src, callback);
+    }
+
+    @Override
+    public void writeValue(ByteBufOutputStream out, Object value) throws IOException {
+        delegate.writeValue(out, value);
+    }
+
+    @Override
+    public void addEventMapping(String namespaceName, String eventName, Class<?>... eventClass) {
+        delegate.addEventMapping(namespaceName, eventName, eventClass);
+    }
+
+    @Override
+    public void removeEventMapping(String namespaceName, String eventName) {
+        delegate.removeEventMapping(namespaceName, eventName);
+    }
+
+    @Override
+    public List<byte[]> getArrays() {
+        return delegate.getArrays();
+    }
+}
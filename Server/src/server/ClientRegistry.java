@@ -0,0 +1,88 @@
+package server;
+
+import com.corundumstudio.socketio.SocketIOClient;
+import data.DataClient;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * ClientRegistry holds every connected client keyed by its session UUID.
+ * Event listeners look clients up here in constant time from any Netty thread,
+ * and views are kept up to date through RegistryListener callbacks.
+ */
+public class ClientRegistry {
+
+    private final ConcurrentHashMap<UUID, DataClient> clients = new ConcurrentHashMap<>();
+    private final List<RegistryListener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(RegistryListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(RegistryListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Adds a newly connected client.
+     * @param data the DataClient representing the client.
+     */
+    public void add(DataClient data) {
+        clients.put(data.getClient().getSessionId(), data);
+        for (RegistryListener listener : listeners) {
+            listener.clientAdded(data);
+        }
+    }
+
+    /**
+     * Removes a client when it disconnects.
+     * @param client the SocketIOClient object representing the client.
+     * @return the removed DataClient, or null if the client was not registered.
+     */
+    public DataClient remove(SocketIOClient client) {
+        DataClient data = clients.remove(client.getSessionId());
+        if (data != null) {
+            for (RegistryListener listener : listeners) {
+                listener.clientRemoved(data);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Looks up the DataClient of a connected client.
+     * @param client the SocketIOClient object representing the client.
+     * @return the DataClient, or null if the client is not registered.
+     */
+    public DataClient get(SocketIOClient client) {
+        return clients.get(client.getSessionId());
+    }
+
+    /**
+     * Sets the name of a connected client.
+     * @param client the SocketIOClient object representing the client.
+     * @param name the username to be set for the client.
+     * @return the renamed DataClient, or null if the client is not registered.
+     */
+    public DataClient rename(SocketIOClient client, String name) {
+        DataClient data = get(client);
+        if (data != null) {
+            data.setName(name);
+            for (RegistryListener listener : listeners) {
+                listener.clientChanged(data);
+            }
+        }
+        return data;
+    }
+
+    public Collection<DataClient> getClients() {
+        return clients.values();
+    }
+
+    public int size() {
+        return clients.size();
+    }
+}
@@ -0,0 +1,182 @@
+package server;
+
+import data.Compression;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * CompressedBlob is the form a blob takes on disk when the server keeps compressible files
+ * compressed. The content is cut into blocks that are deflated one by one, so a download
+ * can start at any block without inflating what comes before it:
+ * <pre>
+ * magic "CBZ1" (4 bytes) | raw size (8 bytes) | block count (4 bytes) |
+ * block offsets (8 bytes each, block count + 1 of them) | blocks
+ * </pre>
+ * A block deflate could not shrink is kept as it is, its stored length then equals its raw
+ * length. Blocks are only inflated when a download reaches them.
+ */
+public class CompressedBlob {
+
+    public static final String SUFFIX = ".z";
+    public static final int BLOCK_SIZE = 256 * 1024;
+    private static final int MAGIC = 0x43425A31;
+    private static final int HEADER_SIZE = 16;
+    //  a file has to shrink below this share of its size to be kept compressed
+    private static final double MAX_RATIO = 0.9;
+
+    private final long rawSize;
+    private final long[] offsets;
+
+    private CompressedBlob(long rawSize, long[] offsets) {
+        this.rawSize = rawSize;
+        this.offsets = offsets;
+    }
+
+    public long getRawSize() {
+        return rawSize;
+    }
+
+    public int getBlockCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @param file a blob.
+     * @return true if the blob is stored compressed.
+     */
+    public static boolean isCompressed(File file) {
+        return file.getName().endsWith(SUFFIX);
+    }
+
+    /**
+     * @param file a blob.
+     * @return the size of the content, read from the header if the blob is compressed.
+     * @throws IOException if the header cannot be read.
+     */
+    public static long getRawSize(File file) throws IOException {
+        if (!isCompressed(file)) {
+            return file.length();
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return open(channel).getRawSize();
+        }
+    }
+
+    /**
+     * Reads the header and the block index.
+     * @param channel the compressed blob.
+     * @return the index of the blob.
+     * @throws IOException if the blob is not a compressed blob.
+     */
+    public static CompressedBlob open(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a compressed blob");
+        }
+        long rawSize = header.getLong();
+        int blocks = header.getInt();
+        if (rawSize < 0 || blocks < 0 || blocks != (rawSize + BLOCK_SIZE - 1) / BLOCK_SIZE) {
+            throw new IOException("Compressed blob header is damaged");
+        }
+        ByteBuffer index = ByteBuffer.allocate((blocks + 1) * 8);
+        readFully(channel, index, HEADER_SIZE);
+        index.flip();
+        long[] offsets = new long[blocks + 1];
+        for (int i = 0; i <= blocks; i++) {
+            offsets[i] = index.getLong();
+        }
+        return new CompressedBlob(rawSize, offsets);
+    }
+
+    /**
+     * Reads and inflates one block.
+     * @param channel the compressed blob.
+     * @param block the index of the block.
+     * @return the content of the block.
+     * @throws IOException if the block cannot be read or inflated.
+     */
+    public byte[] readBlock(FileChannel channel, int block) throws IOException {
+        int rawLength = (int) Math.min(BLOCK_SIZE, rawSize - (long) block * BLOCK_SIZE);
+        int stored = (int) (offsets[block + 1] - offsets[block]);
+        ByteBuffer buffer = ByteBuffer.allocate(stored);
+        readFully(channel, buffer, offsets[block]);
+        if (stored == rawLength) {
+            return buffer.array();
+        }
+        return Compression.inflate(buffer.array(), 0, stored, rawLength);
+    }
+
+    /**
+     * Writes a compressed copy of a file if compressing it saves enough.
+     * @param source the file to compress.
+     * @param target where to write the compressed blob.
+     * @return true if the target was written, false if the file does not compress well.
+     * @throws IOException if the file cannot be read or the target written.
+     */
+    public static boolean compress(File source, File target) throws IOException {
+        boolean kept = false;
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long rawSize = in.size();
+            int blocks = (int) ((rawSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            long[] offsets = new long[blocks + 1];
+            long position = HEADER_SIZE + (blocks + 1) * 8L;
+            long limit = position + (long) (rawSize * MAX_RATIO);
+            ByteBuffer raw = ByteBuffer.allocate(BLOCK_SIZE);
+            boolean worth = true;
+            for (int i = 0; i < blocks && worth; i++) {
+                raw.clear();
+                raw.limit((int) Math.min(BLOCK_SIZE, rawSize - (long) i * BLOCK_SIZE));
+                readFully(in, raw, (long) i * BLOCK_SIZE);
+                byte[] packed = Compression.deflate(raw.array(), 0, raw.limit());
+                ByteBuffer block = packed != null ? ByteBuffer.wrap(packed) : ByteBuffer.wrap(raw.array(), 0, raw.limit());
+                offsets[i] = position;
+                position += writeFully(out, block, position);
+                //  stop early instead of reading the rest of a file that does not shrink
+                worth = position <= limit;
+            }
+            offsets[blocks] = position;
+            if (worth) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + (blocks + 1) * 8);
+                header.putInt(MAGIC).putLong(rawSize).putInt(blocks);
+                for (long offset : offsets) {
+                    header.putLong(offset);
+                }
+                header.flip();
+                writeFully(out, header, 0);
+                out.force(false);
+                kept = true;
+            }
+        } finally {
+            if (!kept) {
+                target.delete();
+            }
+        }
+        return kept;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, at);
+            if (read < 0) {
+                throw new IOException("Blob ends at " + at);
+            }
+            at += read;
+        }
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+}
@@ -0,0 +1,116 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DiskExecutor runs the file reads and writes of the server, so a slow disk never blocks
+ * the Netty event loops. Work is spread over a fixed number of single threaded stripes and
+ * everything for one key runs on the same stripe in submission order, so the chunks and the
+ * finish of one upload are written in the order they arrived. Every stripe has a bounded
+ * queue. When it is full, the work is refused and the caller tells the client to retry.
+ */
+public class DiskExecutor {
+
+    public static final int DEFAULT_STRIPES = 4;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private final ThreadPoolExecutor[] stripes;
+    private final int capacity;
+
+    /**
+     * @param stripes the number of threads doing disk I/O.
+     * @param capacity the largest number of tasks waiting per thread.
+     */
+    public DiskExecutor(int stripes, int capacity) {
+        this.capacity = capacity;
+        this.stripes = new ThreadPoolExecutor[Math.max(1, stripes)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(capacity), new DiskThreads(i));
+        }
+    }
+
+    /**
+     * Queues work on the stripe of a key.
+     * @param key the key that orders the work, for example the fileID.
+     * @param task the work.
+     * @return false if the queue of the stripe is full or the executor is shut down.
+     */
+    public boolean execute(long key, Runnable task) {
+        //  file IDs share their low bits per node, mix the key so every bit picks the stripe
+        int hash = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+        try {
+            stripes[Math.floorMod(hash, stripes.length)].execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting over all stripes.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            depth += stripe.getQueue().size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the number of tasks all stripes together can hold waiting.
+     */
+    public int getQueueCapacity() {
+        return capacity * stripes.length;
+    }
+
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Stops taking work, tasks already queued still run.
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+
+    /**
+     * Waits for the queued tasks after a shutdown.
+     * @param timeout the longest time to wait per stripe.
+     * @param unit the unit of the timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.awaitTermination(timeout, unit);
+        }
+    }
+
+    /**
+     * Names the disk threads, they are daemons so they do not keep the process alive.
+     */
+    private static class DiskThreads implements ThreadFactory {
+
+        private final int stripe;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private DiskThreads(int stripe) {
+            this.stripe = stripe;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "disk-" + stripe + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package server;
+
+import data.DataFileServer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DownloadEngine serves the chunks of downloads. It keeps one open FileChannel per file,
+ * shared by every client downloading it, instead of opening the file for every chunk.
+ * Positional reads do not move a shared position, so clients fetching different ranges of
+ * the same file over several connections read the channel at the same time. The channel is
+ * closed when the last client using it has been served its last chunk or disconnected. A
+ * request for an earlier range after that simply opens the file again.
+ *
+ * Chunks are read with positional reads into pooled direct buffers. netty-socketio only
+ * takes binary attachments as byte arrays, so the chunk is copied once into an array of
+ * exactly its size, which the ack serializer wraps without copying again.
+ *
+ * A blob stored compressed is read a block at a time. Its block index is kept while the
+ * file is open and the last inflated blocks are cached, so consecutive chunks of a block
+ * inflate it once.
+ */
+public class DownloadEngine {
+
+    private static final int CACHED_BLOCKS = 32;
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    // Key long is fileID
+    private final Map<Long, FileChannel> channels = new ConcurrentHashMap<>();
+    // Key long is fileID, value is the sessions reading the file, guarded by this
+    private final Map<Long, Set<UUID>> readers = new HashMap<>();
+    // Key UUID is the client session, value is the files it reads
+    private final Map<UUID, Set<Long>> sessions = new ConcurrentHashMap<>();
+    // Key long is fileID, the block index of files stored compressed
+    private final Map<Long, CompressedBlob> indexes = new ConcurrentHashMap<>();
+    // Key long is fileID, true if the file is worth compressing on the wire
+    private final Map<Long, Boolean> compressible = new ConcurrentHashMap<>();
+    // Key is fileID and block, the blocks inflated last, guarded by itself
+    private final Map<String, byte[]> blocks = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    /**
+     * Reads a chunk of a download.
+     * @param session the session UUID of the client downloading the file.
+     * @param file the DataFileServer object representing the file.
+     * @param position the offset of the chunk in the file.
+     * @param max the largest chunk the client may receive.
+     * @return the chunk, or null if the end of the file is reached.
+     * @throws IOException if an I/O error occurs.
+     */
+    public byte[] read(UUID session, DataFileServer file, long position, int max) throws IOException {
+        long fileSize = file.getFileSizeLength();
+        if (position >= fileSize) {
+            close(session, file.getFileID());
+            return null;
+        }
+        int length = (int) Math.min(max, fileSize - position);
+        if (CompressedBlob.isCompressed(file.getOutPutPath())) {
+            byte[] data;
+            try {
+                data = readCompressed(open(session, file), file.getFileID(), position, length);
+            } catch (ClosedChannelException e) {
+                data = readCompressed(open(session, file), file.getFileID(), position, length);
+            }
+            if (position + data.length >= fileSize) {
+                close(session, file.getFileID());
+            }
+            return data;
+        }
+        ByteBuf buffer = allocator.directBuffer(length, length);
+        try {
+            try {
+                fill(open(session, file), buffer, position);
+            } catch (ClosedChannelException e) {
+                //  the last other reader closed it between open and read
+                buffer.clear();
+                fill(open(session, file), buffer, position);
+            }
+            byte[] data = new byte[buffer.readableBytes()];
+            buffer.getBytes(0, data);
+            if (position + data.length >= fileSize) {
+                //  clients that pipeline requests never ask past the end, close on the last chunk
+                close(session, file.getFileID());
+            }
+            return data;
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Assembles a chunk of a compressed blob from the blocks it spans.
+     * @param channel the open blob.
+     * @param fileID the ID of the file.
+     * @param position the offset of the chunk in the content.
+     * @param length the length of the chunk.
+     * @return the chunk.
+     * @throws IOException if a block cannot be read or inflated.
+     */
+    private byte[] readCompressed(FileChannel channel, long fileID, long position, int length) throws IOException {
+        CompressedBlob index = indexes.get(fileID);
+        if (index == null) {
+            index = CompressedBlob.open(channel);
+            indexes.put(fileID, index);
+        }
+        byte[] data = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            long at = position + copied;
+            int block = (int) (at / CompressedBlob.BLOCK_SIZE);
+            int from = (int) (at % CompressedBlob.BLOCK_SIZE);
+            byte[] raw = block(channel, index, fileID, block);
+            int count = Math.min(raw.length - from, length - copied);
+            System.arraycopy(raw, from, data, copied, count);
+            copied += count;
+        }
+        return data;
+    }
+
+    private byte[] block(FileChannel channel, CompressedBlob index, long fileID, int block) throws IOException {
+        String key = fileID + ":" + block;
+        byte[] raw;
+        synchronized (blocks) {
+            raw = blocks.get(key);
+        }
+        if (raw == null) {
+            raw = index.readBlock(channel, block);
+            synchronized (blocks) {
+                blocks.put(key, raw);
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * Decides once per file if its chunks are worth compressing on the wire. A blob stored
+     * compressed is, any other file is judged from its start.
+     * @param file the DataFileServer object representing the file.
+     * @return true if chunks of the file should be compressed.
+     * @throws IOException if the start of the file cannot be read.
+     */
+    public boolean isCompressible(DataFileServer file) throws IOException {
+        Boolean worth = compressible.get(file.getFileID());
+        if (worth == null) {
+            File path = file.getOutPutPath();
+            worth = CompressedBlob.isCompressed(path) || BlobStore.isCompressible(path);
+            compressible.put(file.getFileID(), worth);
+        }
+        return worth;
+    }
+
+    private void fill(FileChannel channel, ByteBuf buffer, long position) throws IOException {
+        while (buffer.isWritable()) {
+            int read = buffer.writeBytes(channel, position + buffer.writerIndex(), buffer.writableBytes());
+            if (read < 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the shared channel of a file, opening it for the first reader.
+     * @param session the session UUID of the client downloading the file.
+     * @param file the DataFileServer object representing the file.
+     * @return the open channel.
+     * @throws IOException if the file cannot be opened.
+     */
+    private FileChannel open(UUID session, DataFileServer file) throws IOException {
+        FileChannel channel = channels.get(file.getFileID());
+        Set<Long> files = sessions.get(session);
+        if (channel != null && files != null && files.contains(file.getFileID())) {
+            return channel;                     //  this session reads the file already
+        }
+        synchronized (this) {
+            channel = channels.get(file.getFileID());
+            if (channel == null) {
+                channel = FileChannel.open(file.getOutPutPath().toPath(), StandardOpenOption.READ);
+                channels.put(file.getFileID(), channel);
+            }
+            Set<UUID> users = readers.get(file.getFileID());
+            if (users == null) {
+                users = new HashSet<>();
+                readers.put(file.getFileID(), users);
+            }
+            users.add(session);
+            files = sessions.get(session);
+            if (files == null) {
+                files = ConcurrentHashMap.newKeySet();
+                sessions.put(session, files);
+            }
+            files.add(file.getFileID());
+            return channel;
+        }
+    }
+
+    /**
+     * Stops a client reading a file, closing the channel if no other client reads it.
+     * @param session the session UUID of the client downloading the file.
+     * @param fileID the ID of the file.
+     */
+    public synchronized void close(UUID session, long fileID) {
+        Set<Long> files = sessions.get(session);
+        if (files != null) {
+            files.remove(fileID);
+            if (files.isEmpty()) {
+                sessions.remove(session);
+            }
+        }
+        Set<UUID> users = readers.get(fileID);
+        if (users != null) {
+            users.remove(session);
+            if (users.isEmpty()) {
+                readers.remove(fileID);
+                indexes.remove(fileID);
+                closeQuietly(channels.remove(fileID));
+            }
+        }
+    }
+
+    /**
+     * Stops a client reading any file, used when it disconnects.
+     * @param session the session UUID of the client.
+     */
+    public synchronized void closeAll(UUID session) {
+        Set<Long> files = sessions.get(session);
+        if (files != null) {
+            for (Long fileID : files.toArray(new Long[0])) {
+                close(session, fileID);
+            }
+        }
+    }
+
+    /**
+     * Closes every open channel, used when the server stops.
+     */
+    public synchronized void closeAll() {
+        for (FileChannel channel : channels.values()) {
+            closeQuietly(channel);
+        }
+        channels.clear();
+        indexes.clear();
+        synchronized (blocks) {
+            blocks.clear();
+        }
+        readers.clear();
+        sessions.clear();
+    }
+
+    public int getOpenChannels() {
+        return channels.size();
+    }
+
+    private void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package server;
+
+import data.DataFileServer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * FileCatalog holds the stored files, found by ID in constant time and listed a page at a
+ * time in name, size or date order. Each order is a skip list keyed by a string that ends
+ * with the file ID, so equal names and sizes still get a key of their own and a page can
+ * resume right after the last key it returned. That key is the cursor handed to clients.
+ * IDs grow with time, so date order is ID order.
+ *
+ * Files are added from the ingest thread while Netty threads look them up and list them,
+ * every map is concurrent and nothing takes a lock.
+ */
+public class FileCatalog {
+
+    public static final String SORT_NAME = "name";
+    public static final String SORT_SIZE = "size";
+    public static final String SORT_DATE = "date";
+    //  page size for clients that do not ask for one, and the most a page may hold
+    public static final int DEFAULT_PAGE = 100;
+    public static final int MAX_PAGE = 1000;
+
+    private final Map<Long, DataFileServer> byID = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String, DataFileServer> byName = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, DataFileServer> bySize = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, DataFileServer> byDate = new ConcurrentSkipListMap<>();
+
+    /**
+     * Adds a file, or replaces the file with the same ID.
+     * @param file the stored file.
+     */
+    public void add(DataFileServer file) {
+        DataFileServer old = byID.put(file.getFileID(), file);
+        if (old != null) {
+            byName.remove(nameKey(old));
+            bySize.remove(sizeKey(old));
+        }
+        byName.put(nameKey(file), file);
+        bySize.put(sizeKey(file), file);
+        byDate.put(dateKey(file), file);
+    }
+
+    /**
+     * @param files the stored files to add.
+     */
+    public void addAll(Collection<DataFileServer> files) {
+        for (DataFileServer file : files) {
+            add(file);
+        }
+    }
+
+    /**
+     * @param fileID the ID of the file.
+     * @return the file, or null if there is none with that ID.
+     */
+    public DataFileServer get(long fileID) {
+        return byID.get(fileID);
+    }
+
+    /**
+     * @param name the name of a file, case included.
+     * @return the newest file with exactly that name, or null if there is none.
+     */
+    public DataFileServer findLatest(String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        //  names that only differ in case share the keys between the name and the name followed by \1
+        for (DataFileServer file : byName.subMap(key + '\0', true, key + '\1', false).descendingMap().values()) {
+            if (file.getFileName().equals(name)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return byID.size();
+    }
+
+    /**
+     * @return every file in date order.
+     */
+    public List<DataFileServer> getAll() {
+        return new ArrayList<>(byDate.values());
+    }
+
+    public void clear() {
+        byID.clear();
+        byName.clear();
+        bySize.clear();
+        byDate.clear();
+    }
+
+    /**
+     * Lists one page of files. A prefix is answered from the name index when sorting by
+     * name, otherwise it and the search filter the files while walking the chosen order.
+     * @param sort SORT_NAME, SORT_SIZE or SORT_DATE, anything else sorts by date.
+     * @param descending true to walk the order backwards.
+     * @param prefix the start of the file names to list, ignoring case, null or empty for all.
+     * @param search a part of the file names to list, ignoring case, null or empty for all.
+     * @param cursor the cursor of the previous page, null for the first page.
+     * @param limit the most files on the page, 0 or less for DEFAULT_PAGE.
+     * @return the page.
+     */
+    public Page list(String sort, boolean descending, String prefix, String search, String cursor, int limit) {
+        int max = limit <= 0 ? DEFAULT_PAGE : Math.min(limit, MAX_PAGE);
+        String start = prefix == null ? "" : prefix.toLowerCase(Locale.ROOT);
+        String part = search == null ? "" : search.toLowerCase(Locale.ROOT);
+        NavigableMap<String, DataFileServer> view;
+        if (SORT_NAME.equals(sort)) {
+            view = byName;
+            if (!start.isEmpty()) {
+                //  every name key with the prefix sorts between the prefix and the prefix followed by the highest char
+                view = byName.subMap(start, true, start + Character.MAX_VALUE, false);
+            }
+        } else if (SORT_SIZE.equals(sort)) {
+            view = bySize;
+        } else {
+            view = byDate;
+        }
+        if (descending) {
+            view = view.descendingMap();
+        }
+        if (cursor != null && !cursor.isEmpty()) {
+            view = view.tailMap(cursor, false);
+        }
+        List<DataFileServer> files = new ArrayList<>();
+        String last = null;
+        boolean more = false;
+        for (Map.Entry<String, DataFileServer> entry : view.entrySet()) {
+            String name = entry.getValue().getFileName().toLowerCase(Locale.ROOT);
+            if (!name.startsWith(start) || !name.contains(part)) {
+                continue;
+            }
+            if (files.size() == max) {
+                more = true;                            //  one more match, so the next page is not empty
+                break;
+            }
+            files.add(entry.getValue());
+            last = entry.getKey();
+        }
+        return new Page(files, more ? last : null, byID.size());
+    }
+
+    private static String nameKey(DataFileServer file) {
+        return file.getFileName().toLowerCase(Locale.ROOT) + '\0' + hex(file.getFileID());
+    }
+
+    private static String sizeKey(DataFileServer file) {
+        return hex(file.getFileSizeLength()) + hex(file.getFileID());
+    }
+
+    private static String dateKey(DataFileServer file) {
+        return hex(file.getFileID());
+    }
+
+    /**
+     * @param value a value that is not negative.
+     * @return the value as 16 hex digits, so string order is number order.
+     */
+    private static String hex(long value) {
+        String digits = Long.toHexString(value);
+        return "0000000000000000".substring(digits.length()) + digits;
+    }
+
+    /**
+     * One page of the catalog, sent to the client as is.
+     */
+    public static class Page {
+
+        private final List<DataFileServer> files;
+        private final String next;
+        private final int total;
+
+        Page(List<DataFileServer> files, String next, int total) {
+            this.files = files;
+            this.next = next;
+            this.total = total;
+        }
+
+        public List<DataFileServer> getFiles() {
+            return files;
+        }
+
+        /**
+         * @return the cursor of the next page, null if this is the last one.
+         */
+        public String getNext() {
+            return next;
+        }
+
+        /**
+         * @return the number of files in the catalog, matching or not.
+         */
+        public int getTotal() {
+            return total;
+        }
+    }
+}
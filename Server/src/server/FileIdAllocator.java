@@ -0,0 +1,75 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FileIdAllocator hands out 64-bit file IDs that stay unique across restarts and across
+ * servers. An ID is laid out as
+ * <pre>
+ * 0 | 41 bits milliseconds since 2024-01-01 | 12 bits sequence | 10 bits node
+ * </pre>
+ * The node is set per server, so servers behind a balancer never hand out the same ID.
+ * Time and sequence together form a counter that only grows: it starts from the current
+ * time and is bumped with a compare and set, so allocating never takes a lock. More than
+ * 4096 IDs in one millisecond borrow from the next millisecond instead of waiting. After a
+ * restart the counter starts from the clock again, and from the highest ID in the journal
+ * if the clock went back.
+ */
+public class FileIdAllocator {
+
+    public static final int NODE_BITS = 10;
+    public static final int SEQUENCE_BITS = 12;
+    public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+    //  2024-01-01T00:00:00Z, leaves room for IDs until 2093
+    public static final long EPOCH = 1704067200000L;
+
+    private final long node;
+    //  the time and sequence part of the last ID handed out
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     * @param node the node number of this server, from 0 to MAX_NODE.
+     * @throws IllegalArgumentException if the node number is out of range.
+     */
+    public FileIdAllocator(int node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node must be between 0 and " + MAX_NODE + " but got " + node);
+        }
+        this.node = node;
+    }
+
+    /**
+     * Makes sure IDs handed out later are higher than one seen before, such as the highest ID
+     * in the journal.
+     * @param id an ID handed out earlier by any node.
+     */
+    public void observe(long id) {
+        long counter = id >>> NODE_BITS;
+        long current;
+        do {
+            current = last.get();
+        } while (counter > current && !last.compareAndSet(current, counter));
+    }
+
+    /**
+     * @return a new ID, higher than every ID this allocator handed out or observed.
+     */
+    public long next() {
+        long floor = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+        while (true) {
+            long current = last.get();
+            long counter = Math.max(current + 1, floor);
+            if (last.compareAndSet(current, counter)) {
+                return counter << NODE_BITS | node;
+            }
+        }
+    }
+
+    /**
+     * @param id an ID handed out by any node.
+     * @return the node that handed it out.
+     */
+    public static int getNode(long id) {
+        return (int) (id & MAX_NODE);
+    }
+}
@@ -0,0 +1,1021 @@
+package server;
+
+import com.corundumstudio.socketio.AckMode;
+import com.corundumstudio.socketio.AckRequest;
+import com.corundumstudio.socketio.Configuration;
+import com.corundumstudio.socketio.SocketIOClient;
+import com.corundumstudio.socketio.SocketIOServer;
+import com.corundumstudio.socketio.listener.ConnectListener;
+import com.corundumstudio.socketio.listener.DataListener;
+import com.corundumstudio.socketio.listener.DisconnectListener;
+import data.BatchArchive;
+import data.ChunkFrame;
+import data.Compression;
+import data.DataClient;
+import data.DataCopyBlocks;
+import data.DataFileSending;
+import data.DataFileServer;
+import data.DataInitFile;
+import data.DataListRequest;
+import data.DataRequestFile;
+import data.DataWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import javax.management.ObjectName;
+
+/**
+ * FileServer is the Socket.IO side of the file server. It accepts clients, receives
+ * uploads and serves downloads without any dependency on AWT or Swing, so it can run
+ * on a headless machine. Monitors such as the Swing window attach to it through the
+ * RegistryListener and TransferListener callbacks.
+ */
+public class FileServer {
+
+    //  Room left in a frame for the event name, ack id and JSON envelope
+    private static final int CHUNK_OVERHEAD = 1024;
+    //  Chunk size for clients that do not negotiate one
+    private static final int DEFAULT_CHUNK_SIZE = 2000;
+    //  Blocks of delta uploads are copied from the stored version this much at a time
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+    //  Second ack value telling a client the disk queue was full and it should send again later
+    public static final String RETRY = "retry";
+    //  Second ack value telling a client a chunk or the whole upload arrived damaged and which part to send again
+    public static final String RESEND = "resend";
+
+    private final ServerConfig config;
+    private final ClientRegistry clients = new ClientRegistry();
+    private final List<TransferListener> listeners = new CopyOnWriteArrayList<>();
+    //  Stored files, added by the ingest thread while Netty threads look them up and list them
+    private final FileCatalog catalog = new FileCatalog();
+    private final DownloadEngine downloads = new DownloadEngine();
+    // Key long is fileID, value is the client that started the upload
+    // Chunks of one upload may arrive on several sockets, so writers are found by fileID
+    private final Map<Long, DataClient> transfers = new ConcurrentHashMap<>();
+    // Uploads read back from the journal that no client has resumed yet, key long is fileID (see FileIdAllocator)
+    private final Map<Long, DataWriter> restored = new ConcurrentHashMap<>();
+    private TransferJournal journal;
+    private BlobStore blobs;
+    //  Hashes finished uploads into the blob store off the Netty threads
+    private ExecutorService ingest;
+    //  Reads and writes chunks off the Netty threads, ordered per file
+    private DiskExecutor disk;
+    private volatile TunedSocketIOServer server;
+    private final Metrics metrics = new Metrics(this);
+    private MetricsEndpoint metricsEndpoint;
+    private ObjectName metricsName;
+    private volatile FileIdAllocator ids;
+    private int maxChunkSize = DEFAULT_CHUNK_SIZE;
+
+    public FileServer(ServerConfig config) {
+        this.config = config;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public ClientRegistry getClients() {
+        return clients;
+    }
+
+    public void addTransferListener(TransferListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeTransferListener(TransferListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean isRunning() {
+        return server != null;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public int getActiveTransfers() {
+        return transfers.size();
+    }
+
+    public int getOpenDownloadChannels() {
+        return downloads.getOpenChannels();
+    }
+
+    /**
+     * @return the tasks waiting on the Netty event loops, 0 while the server is stopped.
+     */
+    public int getEventLoopQueueDepth() {
+        TunedSocketIOServer current = server;
+        return current == null ? 0 : current.getPendingTasks();
+    }
+
+    /**
+     * @return the number of chunk reads and writes waiting for a disk thread.
+     */
+    public int getDiskQueueDepth() {
+        DiskExecutor current = disk;
+        return current == null ? 0 : current.getQueueDepth();
+    }
+
+    /**
+     * Takes a snapshot of the load on the server, sent to clients asking for "stats".
+     * @return the counters by name.
+     */
+    public Map<String, Object> getStats() {
+        ProcessStats process = ProcessStats.getDefault();
+        Runtime runtime = Runtime.getRuntime();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("clients", clients.size());
+        stats.put("uploads", transfers.size());
+        stats.put("files", catalog.size());
+        stats.put("openChannels", downloads.getOpenChannels());
+        stats.put("diskQueue", getDiskQueueDepth());
+        stats.put("eventLoopQueue", getEventLoopQueueDepth());
+        stats.put("gcCount", process.getGcCount());
+        stats.put("gcTimeMs", process.getGcTime());
+        stats.put("gcLongestMs", process.getLongestGcPause());
+        stats.put("openFds", process.getOpenFileDescriptors());
+        stats.put("heapUsed", runtime.totalMemory() - runtime.freeMemory());
+        return stats;
+    }
+
+    /**
+     * @return the transport, thread, buffer and socket options the running server was bound with.
+     */
+    public String getStartupReport() {
+        TunedSocketIOServer current = server;
+        return current == null ? "not started\n" : current.getReport();
+    }
+
+    /**
+     * Starts the Socket.IO server and initializes event listeners for various client actions.
+     * Calling it while the server is running does nothing.
+     * @throws IOException if the storage directory cannot be created.
+     */
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        File root = config.getStorageRoot();
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Cannot create storage directory " + root);
+        }
+        blobs = new BlobStore(root, config.isStoreCompressed());
+        ingest = Executors.newSingleThreadExecutor();
+        disk = new DiskExecutor(config.getDiskThreads(), config.getDiskQueue());
+        ProcessStats.getDefault();                  //  starts listening for collection pauses
+        journal = new TransferJournal(root);
+        journal.open();
+        catalog.clear();
+        catalog.addAll(journal.getCompleted());
+        restored.putAll(journal.getPending());
+        ids = new FileIdAllocator(config.getNodeId());
+        ids.observe(journal.getLastFileID());
+        Configuration configuration = new Configuration();
+        configuration.setPort(config.getPort());
+        configuration.setMaxFramePayloadLength(config.getMaxFramePayload());
+        configuration.setMaxHttpContentLength(config.getMaxFramePayload());
+        configuration.setJsonSupport(new ChunkJsonSupport());
+        //  Chunk acks are sent by the disk threads once the data is written, never automatically
+        configuration.setAckMode(AckMode.MANUAL);
+        maxChunkSize = maxChunkSize(configuration);
+        server = new TunedSocketIOServer(configuration, config);
+
+        //  Add event to server when client connected
+        server.addConnectListener(new ConnectListener() {
+            @Override
+            public void onConnect(SocketIOClient socketIOClient) {
+                //  This method runs when new client connected and doesn't have a name
+                clients.add(new DataClient(socketIOClient, ""));
+            }
+        });
+
+        // Listening for the function onDisconnect();
+        server.addDisconnectListener(new DisconnectListener() {
+            @Override
+            public void onDisconnect(SocketIOClient socketIOClient) {
+                clients.remove(socketIOClient);
+                downloads.closeAll(socketIOClient.getSessionId());
+            }
+        });
+
+        // Listening for the function setUserName();
+        server.addEventListener("set_user", String.class, new DataListener<String>() {
+            @Override
+            public void onData(SocketIOClient socketIOClient, String t, AckRequest ackReq) throws Exception {
+                clients.rename(socketIOClient, t);
+            }
+        });
+
+        // Listening for initFileTransfer();
+        server.addEventListener("send_file", DataInitFile.class, new DataListener<DataInitFile>() {
+            @Override
+            public void onData(SocketIOClient socketIOClient, DataInitFile dataInit, AckRequest ackReq) throws Exception {
+                DataFileServer stored = findStored(socketIOClient, dataInit);
+                if (stored != null) {
+                    //  the content is here already, the upload is complete without sending it
+                    ackReq.sendAckData(true, stored.getFileID(), negotiateChunkSize(dataInit.getChunkSize()), true);
+                    publish(stored);
+                    return;
+                }
+                long fileID = initFileTransfer(socketIOClient, dataInit);
+                if (fileID > 0) {
+                    //  call back function to client with the chunk size it may use
+                    ackReq.sendAckData(true, fileID, negotiateChunkSize(dataInit.getChunkSize()), false, negotiateCompression(dataInit.getCompression()));
+                } else {
+                    ackReq.sendAckData(false);
+                }
+            }
+        });
+
+        // Listening for writeFile() and executes.;
+        server.addEventListener("sending", DataFileSending.class, new DataListener<DataFileSending>() {
+            @Override
+            public void onData(SocketIOClient socketIOClient, DataFileSending t, AckRequest ackReq) throws Exception {
+                boolean queued = disk.execute(t.getFileID(), new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!t.isFinish()) {
+                            ackReq.sendAckData(writeFile(socketIOClient, t));
+                        } else {
+                            finishFile(socketIOClient, t.getFileID(), ackReq);
+                        }
+                    }
+                });
+                if (!queued) {
+                    ackReq.sendAckData(false, RETRY);
+                }
+            }
+        });
+
+        // Listening for binary chunk frames, decoded by ChunkJsonSupport
+        server.addEventListener(ChunkJsonSupport.CHUNK_EVENT, ChunkFrame.class, new DataListener<ChunkFrame>() {
+            @Override
+            public void onData(SocketIOClient socketIOClient, ChunkFrame t, AckRequest ackReq) throws Exception {
+                long received = System.nanoTime();
+                boolean queued = disk.execute(t.getFileID(), new Runnable() {
+                    @Override
+                    public void run() {
+                        if (t.isFinish()) {
+                            finishFile(socketIOClient, t.getFileID(), ackReq);
+                        } else if (!t.isIntact()) {
+                            //  only this chunk is sent again, the checksum is checked here to keep it off the Netty threads
+                            metrics.chunkDamaged();
+                            ackReq.sendAckData(false, RESEND);
+                        } else {
+                            //  the ack goes out once the chunk is written
+                            ackReq.sendAckData(writeFile(socketIOClient, t));
+                            metrics.getAckLatency().record(System.nanoTime() - received);
+                        }
+                    }
+                });
+                if (!queued) {
+                    ackReq.sendAckData(false, RETRY);
+                }
+            }
+        });
+
+        // Listening for uploads a client gave up on
+        server.addEventListener("abort_file", Long.class, new DataListener<Long>() {
+            @Override
+            public void onData(SocketIOClient socketIOClient, Long t, AckRequest ackReq) throws Exception {
+                //  ordered after the chunks of the upload still waiting for the disk
+                boolean queued = disk.execute(t, new Runnable() {
+                    @Override
+                    public void run() {
+                        ackReq.sendAckData(abortFile(socketIOClient, t));
+                    }
+                });
+                if (!queued) {
+                    ackReq.sendAckData(false, RETRY);
+                }
+            }
+        });
+
+        // Listening for the block signatures of the stored version of a file about to be uploaded again
+        server.addEventListener("signatures", String.class, new DataListener<String>() {
+            @Override
+            public void onData(SocketIOClient socketIOClient, String t, AckRequest ackReq) throws Exception {
+                DataFileServer base = catalog.findLatest(PathNames.sanitize(t, 0));
+                if (base == null) {
+                    ackReq.sendAckData();
+                    return;
+                }
+                //  signing reads the whole stored file, so it runs on a disk thread
+                boolean queued = disk.execute(base.getFileID(), new Runnable() {
+                    @Override
+                    public void run() {
+                        try (BlobChannel blob = BlobChannel.open(base.getOutPutPath())) {
+                            int blockSize = BlockSignatures.blockSize(blob.size());
+                            ackReq.sendAckData(base.getFileID(), blockSize, BlockSignatures.compute(blob, blockSize));
+                        } catch (Exception e) {
+                            ackReq.sendAckData();
+                            e.printStackTrace();
+                        }
+                    }
+                });
+                if (!queued) {
+                    ackReq.sendAckData(false, RETRY);
+                }
+            }
+        });
+
+        // Listening for the blocks of a delta upload that are copied from the stored version
+        server.addEventListener("copy_blocks", DataCopyBlocks.class, new DataListener<DataCopyBlocks>() {
+            @Override
+            public void onData(SocketIOClient socketIOClient, DataCopyBlocks t, AckRequest ackReq) throws Exception {
+                boolean queued = disk.execute(t.getFileID(), new Runnable() {
+                    @Override
+                    public void run() {
+                        ackReq.sendAckData(copyBlocks(socketIOClient, t));
+                    }
+                });
+                if (!queued) {
+                    ackReq.sendAckData(false, RETRY);
+                }
+            }
+        });
+
+        server.addEventListener("req_file_length", Long.class, new DataListener<Long>() {
+            @Override
+            public void onData(SocketIOClient socketIOClient, Long t, AckRequest ackReq) throws Exception {
+                try {
+                    long length = getFileLength(socketIOClient, t);
+                    if (length > 0) {
+                        ackReq.sendAckData(length + "");
+                    } else {
+                        ackReq.sendAckData();
+                    }
+                } catch (IOException e) {
+                    ackReq.sendAckData();
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        server.addEventListener("req_file_missing", Long.class, new DataListener<Long>() {
+            @Override
+            public void onData(SocketIOClient socketIOClient, Long t, AckRequest ackReq) throws Exception {
+                List<long[]> missing = getMissingRanges(socketIOClient, t);
+                if (missing != null) {
+                    ackReq.sendAckData(missing);
+                } else {
+                    ackReq.sendAckData();
+                }
+            }
+        });
+
+        server.addEventListener("request", String.class, new DataListener<String>() {
+            @Override
+            public void onData(SocketIOClient socketIOClient, String t, AckRequest ackReq) throws Exception {
+                if (t.equals("list_file")) {
+                    //  clients from before the catalog was paged still get every file
+                    ackReq.sendAckData(catalog.getAll().toArray());
+                } else if (t.equals("stats")) {
+                    ackReq.sendAckData(getStats());
+                } else {
+                    ackReq.sendAckData();
+                }
+            }
+        });
+
+        server.addEventListener("list_files", DataListRequest.class, new DataListener<DataListRequest>() {
+            @Override
+            public void onData(SocketIOClient socketIOClient, DataListRequest t, AckRequest ackReq) throws Exception {
+                ackReq.sendAckData(catalog.list(t.getSort(), t.isDescending(), t.getPrefix(), t.getSearch(), t.getCursor(), t.getLimit()));
+            }
+        });
+
+        server.addEventListener("request_file", DataRequestFile.class, new DataListener<DataRequestFile>() {
+            @Override
+            public void onData(SocketIOClient socketIOClient, DataRequestFile t, AckRequest ackReq) throws Exception {
+                long received = System.nanoTime();
+                //  reads of one client stay in order, different clients spread over the disk threads
+                boolean queued = disk.execute(socketIOClient.getSessionId().hashCode(), new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            byte b[] = getFile(socketIOClient, t);
+                            if (b != null) {
+                                byte[] packed = compressChunk(t, b);
+                                byte[] sent = packed != null ? packed : b;
+                                //  the client checks the chunk against its CRC32 and asks for it again if they differ
+                                CRC32 crc = new CRC32();
+                                crc.update(sent, 0, sent.length);
+                                if (packed != null) {
+                                    //  the raw length tells the client the chunk is compressed
+                                    ackReq.sendAckData(packed, crc.getValue(), b.length);
+                                    metrics.compressionSaved(b.length - packed.length);
+                                } else {
+                                    ackReq.sendAckData(b, crc.getValue());
+                                }
+                                metrics.getDownloadLatency().record(System.nanoTime() - received);
+                                metrics.chunkSent(clientName(socketIOClient), sent.length);
+                            } else {
+                                ackReq.sendAckData();
+                            }
+                        } catch (Exception e) {
+                            ackReq.sendAckData();
+                            e.printStackTrace();
+                        }
+                    }
+                });
+                if (!queued) {
+                    ackReq.sendAckData(false, RETRY);
+                }
+            }
+        });
+        server.start();
+        startMetrics();
+    }
+
+    /**
+     * Registers the metrics with JMX and starts the scrape endpoint if a metrics port is set.
+     * The server keeps running if either fails.
+     */
+    private void startMetrics() {
+        try {
+            metricsName = new ObjectName("server:type=Metrics,port=" + config.getPort());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (Exception e) {
+            metricsName = null;
+            e.printStackTrace();
+        }
+        if (config.getMetricsPort() > 0) {
+            metricsEndpoint = new MetricsEndpoint(metrics, config.getMetricsPort());
+            try {
+                metricsEndpoint.start();
+            } catch (IOException e) {
+                metricsEndpoint = null;
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void stopMetrics() {
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+            metricsEndpoint = null;
+        }
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            metricsName = null;
+        }
+    }
+
+    /**
+     * Stops the Socket.IO server. Calling it while the server is stopped does nothing.
+     */
+    public synchronized void stop() {
+        if (server != null) {
+            stopMetrics();
+            server.stop();
+            server = null;
+            disk.shutdown();
+            try {
+                disk.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            downloads.closeAll();
+            for (Map.Entry<Long, DataClient> transfer : transfers.entrySet()) {
+                DataWriter writer = transfer.getValue().getWriter(transfer.getKey());
+                if (writer != null) {
+                    journal.checkpoint(transfer.getKey(), writer);
+                }
+                closeQuietly(writer);
+            }
+            transfers.clear();
+            for (DataWriter writer : restored.values()) {
+                closeQuietly(writer);
+            }
+            restored.clear();
+            ingest.shutdown();              //  uploads already queued are still stored
+            journal.close();
+        }
+    }
+
+    private void closeQuietly(DataWriter writer) {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+    * Initializes the file transfer process for a client.
+    * @param client the SocketIOClient object representing the client.
+    * @param dataInit the DataInitFile object containing initial file data.
+    * @return the ID of the initialized file transfer.
+    */
+    private long initFileTransfer(SocketIOClient client, DataInitFile dataInit) {
+        long id = 0;
+        DataClient data = clients.get(client);
+        if (data != null) {
+            try {
+                id = ids.next();
+                String listed = PathNames.sanitize(dataInit.getFileName(), id);
+                //  the directories of the name are kept in the journal, not in the storage directory
+                File file = new File(config.getStorageRoot(), id + "-" + PathNames.baseName(listed));
+                DataWriter writer = new DataWriter(file, dataInit.getFileSize());
+                writer.setPath(listed);
+                if (BlobStore.isHash(dataInit.getHash())) {
+                    writer.setExpectedHash(dataInit.getHash());
+                }
+                writer.setBatch(dataInit.isBatch());
+                data.addWrite(writer, id);
+                transfers.put(id, data);
+                journal.begin(id, writer);
+                for (TransferListener listener : listeners) {
+                    listener.transferStarted(data, id, writer);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return id;
+    }
+
+    /**
+    * Writes data to the file being transferred.
+    * @param client the SocketIOClient object representing the client.
+    * @param file the DataFileSending object containing the data to be written.
+    * @return true if the write operation was successful, false otherwise.
+    */
+    private boolean writeFile(SocketIOClient client, DataFileSending file) {
+        boolean error = false;
+        DataClient data = owner(client, file.getFileID());
+        if (data == null) {
+            //  unknown or aborted upload, the client must not count the chunk as stored
+            return false;
+        } else {
+            try {
+                long start = System.nanoTime();
+                DataWriter writer = data.writeFile(file.getData(), file.getOffset(), file.getFileID());
+                metrics.getDiskWriteLatency().record(System.nanoTime() - start);
+                metrics.chunkReceived(data.getName(), file.getFileID(), file.getData().length);
+                journal.written(file.getFileID(), writer);
+                for (TransferListener listener : listeners) {
+                    listener.transferProgress(data, file.getFileID(), writer);
+                }
+            } catch (Exception e) {
+                error = true;
+                e.printStackTrace();
+            }
+        }
+        //  return true if not error
+        return !error;
+    }
+
+    /**
+    * Writes the payload of a binary chunk frame to the file being transferred.
+    * @param client the SocketIOClient object representing the client.
+    * @param frame the ChunkFrame carrying the data and its offset.
+    * @return true if the write operation was successful, false otherwise.
+    */
+    private boolean writeFile(SocketIOClient client, ChunkFrame frame) {
+        boolean error = false;
+        DataClient data = owner(client, frame.getFileID());
+        if (data == null) {
+            //  unknown or aborted upload, the client must not count the chunk as stored
+            return false;
+        } else {
+            try {
+                long start = System.nanoTime();
+                DataWriter writer = data.writeFile(frame);
+                metrics.getDiskWriteLatency().record(System.nanoTime() - start);
+                metrics.chunkReceived(data.getName(), frame.getFileID(), frame.getLength());
+                if (frame.isCompressed()) {
+                    metrics.compressionSaved(frame.getRawLength() - frame.getLength());
+                }
+                journal.written(frame.getFileID(), writer);
+                for (TransferListener listener : listeners) {
+                    listener.transferProgress(data, frame.getFileID(), writer);
+                }
+            } catch (Exception e) {
+                error = true;
+                e.printStackTrace();
+            }
+        }
+        //  return true if not error
+        return !error;
+    }
+
+    /**
+    * Writes the blocks of a delta upload the client found in the stored version of the file.
+    * The copies count as received, the client sends the rest as chunks and the hash checked
+    * at the finish covers both.
+    * @param client the SocketIOClient object representing the client.
+    * @param copy the DataCopyBlocks object listing the blocks to copy.
+    * @return true if every block was copied, false otherwise.
+    */
+    private boolean copyBlocks(SocketIOClient client, DataCopyBlocks copy) {
+        DataClient data = owner(client, copy.getFileID());
+        DataWriter writer = data == null ? null : data.getWriter(copy.getFileID());
+        DataFileServer base = catalog.get(copy.getBase());
+        if (writer == null || base == null || copy.getCopies() == null) {
+            return false;
+        }
+        try (BlobChannel blob = BlobChannel.open(base.getOutPutPath())) {
+            long blockSize = copy.getBlockSize();
+            if (blockSize != BlockSignatures.blockSize(blob.size())) {
+                return false;                       //  signed with another size, the blocks would not line up
+            }
+            long blocks = blob.size() / blockSize;
+            long copied = 0;
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            for (long[] c : copy.getCopies()) {
+                if (c.length < 3 || c[0] < 0 || c[1] < 0 || c[2] <= 0 || c[1] + c[2] > blocks || c[0] + c[2] * blockSize > writer.getFileSize()) {
+                    return false;
+                }
+                long length = c[2] * blockSize;
+                for (long done = 0; done < length;) {
+                    int n = blob.read(buffer, 0, (int) Math.min(buffer.length, length - done), c[1] * blockSize + done);
+                    writer.writeFile(buffer, 0, n, c[0] + done);
+                    done += n;
+                }
+                copied += length;
+            }
+            metrics.deltaCopied(copied);
+            journal.written(copy.getFileID(), writer);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Answers the finish of an upload, with false alone once it is stored, or with false,
+     * RESEND and the ranges the client has to send again.
+     * @param client the SocketIOClient object representing the client.
+     * @param fileID the ID of the file being transferred.
+     * @param ackReq the ack of the finish.
+     */
+    private void finishFile(SocketIOClient client, long fileID, AckRequest ackReq) {
+        List<long[]> resend = closeFile(client, fileID);
+        if (resend == null) {
+            ackReq.sendAckData(false);
+        } else {
+            ackReq.sendAckData(false, RESEND, resend);
+        }
+    }
+
+    /**
+     * Closes the file being transferred and hands it to the ingest thread, which moves it
+     * into the blob store, adds it to the catalog and announces it. An upload with gaps is
+     * kept open. An upload that does not match the hash the client sent is received again
+     * from the start, every chunk passed its checksum, so there is no telling which part is wrong.
+     * @param client the SocketIOClient object representing the client.
+     * @param fileID the ID of the file being transferred.
+     * @return the ranges the client has to send again, or null if the upload is done or unknown.
+     */
+    private List<long[]> closeFile(SocketIOClient client, long fileID) {
+        DataClient owner = owner(client, fileID);
+        DataWriter received = owner == null ? null : owner.getWriter(fileID);
+        if (received != null) {
+            try {
+                List<long[]> missing = received.getReceived().getMissing(received.getFileSize());
+                if (!missing.isEmpty()) {
+                    return missing;
+                }
+                //  hashed while it was written, this only reads back what arrived out of order
+                if (!received.verify()) {
+                    System.err.println("Upload " + fileID + " does not match the hash its client sent, receiving it again");
+                    metrics.uploadDamaged();
+                    received.reset();
+                    journal.checkpoint(fileID, received);
+                    return received.getReceived().getMissing(received.getFileSize());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        metrics.uploadEnded(fileID);
+        DataClient data = transfers.remove(fileID);
+        if (data != null) {
+            try {
+                DataWriter writer = data.getWriter(fileID);
+                writer.force();
+                data.closeWriter(fileID);
+                ingest.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        storeFile(data, fileID, writer);
+                    }
+                });
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Discards an upload its client gave up on. The received part is deleted and the journal
+     * forgets the upload, so it is neither listed nor resumed after a restart.
+     * @param client the SocketIOClient object representing the client.
+     * @param fileID the ID of the file being transferred.
+     * @return true if the upload was discarded, false if it is unknown.
+     */
+    private boolean abortFile(SocketIOClient client, long fileID) {
+        DataClient data = owner(client, fileID) == null ? null : transfers.remove(fileID);
+        if (data == null) {
+            return false;
+        }
+        metrics.uploadEnded(fileID);
+        DataWriter writer = data.getWriter(fileID);
+        if (writer != null) {
+            try {
+                data.closeWriter(fileID);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!writer.getFile().delete()) {
+                System.err.println("Cannot delete aborted upload " + writer.getFile());
+            }
+        }
+        journal.aborted(fileID);
+        for (TransferListener listener : listeners) {
+            listener.transferAborted(data, fileID);
+        }
+        return true;
+    }
+
+    /**
+     * Moves a finished upload into the blob store and publishes it. An upload the client sent
+     * no hash for is hashed here by reading the whole file, so it runs on the ingest thread
+     * instead of a Netty thread.
+     * @param data the DataClient that sent the file.
+     * @param fileID the ID of the file.
+     * @param writer the closed DataWriter that received the file.
+     */
+    private void storeFile(DataClient data, long fileID, DataWriter writer) {
+        if (writer.isBatch()) {
+            unpackBatch(data, fileID, writer);
+            return;
+        }
+        try {
+            String name = writer.getFile().getName();
+            File blob = blobs.ingest(writer.getFile(), writer.getHash());
+            String listed = writer.getPath() != null ? writer.getPath() : name.substring(name.indexOf("-", 0) + 1);
+            DataFileServer fileServer = new DataFileServer(fileID, listed, writer.getMaxFileSize(), writer.getFileSize(), blob);
+            fileServer.setHash(BlobStore.hashOf(blob));
+            journal.complete(fileID, blobs.relativePath(blob));
+            catalog.add(fileServer);
+            for (TransferListener listener : listeners) {
+                listener.transferFinished(data, fileServer);
+            }
+            publish(fileServer);
+        } catch (Exception e) {
+            e.printStackTrace();
+            for (TransferListener listener : listeners) {
+                listener.transferAborted(data, fileID);
+            }
+        }
+    }
+
+    /**
+     * Unpacks a finished batch upload into the blob store, adds its files to the catalog in
+     * one go and announces them with a single new_files event. The journal entries of all
+     * the files are synced once, then the archive is deleted. A damaged archive keeps the
+     * files unpacked before the damage.
+     * @param data the DataClient that sent the batch.
+     * @param batchID the ID of the batch upload.
+     * @param writer the closed DataWriter that received the archive.
+     */
+    private void unpackBatch(DataClient data, long batchID, DataWriter writer) {
+        File archive = writer.getFile();
+        List<DataFileServer> files = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        try (BatchArchive batch = new BatchArchive(archive)) {
+            while (batch.next()) {
+                File part = new File(config.getStorageRoot(), batchID + "-" + files.size() + ".part");
+                String hash = batch.copy(part);
+                File blob = blobs.ingest(part, hash);
+                long id = ids.next();
+                DataFileServer file = new DataFileServer(id, PathNames.sanitize(batch.getName(), id), DataWriter.convertFile(batch.getSize()), batch.getSize(), blob);
+                file.setHash(hash);
+                files.add(file);
+                paths.add(blobs.relativePath(blob));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        journal.unpacked(batchID, archive.getName(), files, paths);
+        if (!archive.delete()) {
+            System.err.println("Cannot delete batch archive " + archive);
+        }
+        catalog.addAll(files);
+        DataFileServer finished = new DataFileServer(batchID, archive.getName(), writer.getMaxFileSize(), writer.getFileSize(), archive);
+        for (TransferListener listener : listeners) {
+            listener.transferFinished(data, finished);
+        }
+        SocketIOServer current = server;
+        if (current != null && !files.isEmpty()) {
+            current.getBroadcastOperations().sendEvent("new_files", files);
+        }
+    }
+
+    /**
+     * Looks for the content of an upload in the blob store by the hash the client sent.
+     * @param client the SocketIOClient object representing the client.
+     * @param dataInit the DataInitFile object containing initial file data.
+     * @return the new file pointing at the stored blob, or null if the content has to be sent.
+     */
+    private DataFileServer findStored(SocketIOClient client, DataInitFile dataInit) {
+        if (dataInit.isBatch()) {
+            return null;                            //  a batch is unpacked, never stored as it is
+        }
+        File blob = blobs.find(dataInit.getHash());
+        if (blob == null || clients.get(client) == null) {
+            return null;
+        }
+        long size;
+        try {
+            size = CompressedBlob.getRawSize(blob);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (size != dataInit.getFileSize()) {
+            return null;
+        }
+        long id = ids.next();
+        String name = PathNames.sanitize(dataInit.getFileName(), id);
+        DataFileServer fileServer = new DataFileServer(id, name, DataWriter.convertFile(size), size, blob);
+        fileServer.setHash(BlobStore.hashOf(blob));
+        journal.stored(id, size, id + "-" + name, blobs.relativePath(blob));
+        catalog.add(fileServer);
+        return fileServer;
+    }
+
+    /**
+     * Tells every client about a new file.
+     * @param file the DataFileServer object representing the stored file.
+     */
+    private void publish(DataFileServer file) {
+        SocketIOServer current = server;
+        if (current != null) {
+            current.getBroadcastOperations().sendEvent("new_file", file);
+        }
+    }
+
+    /**
+     * Retrieves the length of the file being transferred.
+     * @param client the SocketIOClient object representing the client.
+     * @param fileID the ID of the file being transferred.
+     * @return the length of the file in bytes.
+     * @throws IOException if an I/O error occurs.
+     */
+    private long getFileLength(SocketIOClient client, long fileID) throws IOException {
+        DataClient data = owner(client, fileID);
+        if (data != null) {
+            return data.getFileLength(fileID);
+        }
+        return 0;
+    }
+
+    /**
+     * Lists the ranges of an upload that have not been received yet, so a client can
+     * resume every stream of a parallel upload.
+     * @param client the SocketIOClient object representing the client.
+     * @param fileID the ID of the file being transferred.
+     * @return the missing ranges as {start, end} pairs, or null if the upload is unknown.
+     */
+    private List<long[]> getMissingRanges(SocketIOClient client, long fileID) {
+        DataClient data = owner(client, fileID);
+        if (data != null) {
+            DataWriter writer = data.getWriter(fileID);
+            if (writer != null) {
+                return writer.getReceived().getMissing(writer.getFileSize());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param client the SocketIOClient object representing the client.
+     * @return the name the client set, or null if it is not registered.
+     */
+    private String clientName(SocketIOClient client) {
+        DataClient data = clients.get(client);
+        return data == null ? null : data.getName();
+    }
+
+    /**
+     * Finds the client an upload belongs to. An upload read back from the journal is taken
+     * over by the first client that touches it, whichever connection that is.
+     * @param client the SocketIOClient object representing the client.
+     * @param fileID the ID of the file being transferred.
+     * @return the DataClient holding the upload, or null if the upload is unknown.
+     */
+    private DataClient owner(SocketIOClient client, long fileID) {
+        DataClient data = transfers.get(fileID);
+        if (data == null) {
+            DataClient resuming = clients.get(client);
+            DataWriter writer = resuming == null ? null : restored.remove(fileID);
+            if (writer != null) {
+                //  only one thread can remove the writer, so only one client takes it over
+                data = resuming;
+                data.addWrite(writer, fileID);
+                transfers.put(fileID, data);
+                for (TransferListener listener : listeners) {
+                    listener.transferStarted(data, fileID, writer);
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Retrieves the file data for the requested file.
+     * @param client the SocketIOClient object representing the client.
+     * @param data the DataRequestFile object containing the request details.
+     * @return the file data as a byte array, or null if the end of the file is reached or the file is unknown.
+     * @throws IOException if an I/O error occurs.
+     */
+    private byte[] getFile(SocketIOClient client, DataRequestFile data) throws IOException {
+        DataFileServer d = catalog.get(data.getFileID());
+        if (d == null) {
+            return null;
+        }
+        //  the client asks for the chunk size it can take
+        //  we spite it to send large file
+        int max = negotiateChunkSize(data.getChunkSize());
+        return downloads.read(client.getSessionId(), d, data.getLength(), max);
+    }
+
+    /**
+     * Works out the largest chunk that still fits in a single frame. Binary data sent over
+     * the polling transport is base64 encoded, so it needs a third more room than the data.
+     * @param configuration the configuration the server is started with.
+     * @return the largest chunk size in bytes.
+     */
+    private int maxChunkSize(Configuration configuration) {
+        int frame = Math.min(configuration.getMaxFramePayloadLength(), configuration.getMaxHttpContentLength() / 4 * 3);
+        return Math.max(DEFAULT_CHUNK_SIZE, frame - CHUNK_OVERHEAD);
+    }
+
+    /**
+     * Clamps the chunk size a client asked for to what the server accepts.
+     * @param requested the chunk size the client asked for, 0 if it did not ask.
+     * @return the chunk size the client may use.
+     */
+    private int negotiateChunkSize(int requested) {
+        if (requested <= 0) {
+            return DEFAULT_CHUNK_SIZE;
+        }
+        return Math.min(requested, maxChunkSize);
+    }
+
+    /**
+     * Picks the compression of an upload from the one the client offers.
+     * @param offered the compression the client can send, null if it sends raw chunks.
+     * @return Compression.DEFLATE if both sides take it, an empty string for raw chunks.
+     */
+    private String negotiateCompression(String offered) {
+        if (config.isCompression() && Compression.DEFLATE.equals(offered)) {
+            return Compression.DEFLATE;
+        }
+        return "";
+    }
+
+    /**
+     * Compresses a download chunk if the client takes compressed chunks and the file is
+     * worth it, judged once per file from its start.
+     * @param request the DataRequestFile object the chunk answers.
+     * @param chunk the chunk read from the file.
+     * @return the compressed chunk, or null to send the chunk as it is.
+     * @throws IOException if the start of the file cannot be read.
+     */
+    private byte[] compressChunk(DataRequestFile request, byte[] chunk) throws IOException {
+        if (!config.isCompression() || !Compression.DEFLATE.equals(request.getCompression())) {
+            return null;
+        }
+        DataFileServer file = catalog.get(request.getFileID());
+        if (file == null || !downloads.isCompressible(file)) {
+            return null;
+        }
+        return Compression.deflate(chunk, 0, chunk.length);
+    }
+}
@@ -0,0 +1,97 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram counts durations in buckets that double in width, from one microsecond up to
+ * about a minute. Recording is a couple of atomic increments and never allocates, so it can
+ * sit on the chunk path of every transfer. Percentiles are read as the upper bound of the
+ * bucket they fall in, which is at most twice the real value.
+ */
+public class Histogram {
+
+    //  bucket i counts durations up to 2^i microseconds, the last one everything longer
+    public static final int BUCKETS = 27;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration.
+     * @param nanos the duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(1, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        sum.add(nanos);
+        long longest;
+        do {
+            longest = max.get();
+        } while (nanos > longest && !max.compareAndSet(longest, nanos));
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of every recorded duration in nanoseconds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return the longest recorded duration in nanoseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param bucket the bucket index.
+     * @return the number of durations in the bucket.
+     */
+    public long getBucket(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     * @param bucket the bucket index.
+     * @return the longest duration the bucket counts, in microseconds.
+     */
+    public static long getUpperBound(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * @param percent the percentile, between 0 and 100.
+     * @return the upper bound of the bucket the percentile falls in, in microseconds, 0 when empty.
+     */
+    public long getPercentile(double percent) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percent / 100 * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return getUpperBound(i);
+            }
+        }
+        return max.get() / 1000;
+    }
+}
@@ -0,0 +1,355 @@
+package server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics counts what the server moves: bytes and chunks in and out, server-wide, per client
+ * and per transfer, and the time a chunk takes from arriving to being acked, on disk and
+ * from a download request to its reply. Counters are LongAdders, so the Netty and disk
+ * threads recording into them do not contend. Gauges such as active transfers and queue
+ * depths are read from the FileServer when the metrics are read.
+ *
+ * The metrics are read through JMX as a MetricsMXBean and, when a metrics port is set, as
+ * Prometheus text from MetricsEndpoint.
+ */
+public class Metrics implements MetricsMXBean {
+
+    private final FileServer server;
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final Rate chunksReceived = new Rate();
+    private final Rate chunksSent = new Rate();
+    private final LongAdder chunksDamaged = new LongAdder();
+    private final LongAdder uploadsDamaged = new LongAdder();
+    private final LongAdder compressionSaved = new LongAdder();
+    private final LongAdder deltaCopied = new LongAdder();
+    // Key string is the client name, all sockets of a user count together
+    private final ConcurrentHashMap<String, LongAdder> bytesReceivedByClient = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> bytesSentByClient = new ConcurrentHashMap<>();
+    // Key long is fileID, uploads are dropped once they end
+    // Downloads have no end the server sees, so they are only counted per client
+    private final ConcurrentHashMap<Long, LongAdder> bytesReceivedByTransfer = new ConcurrentHashMap<>();
+    private final Histogram ackLatency = new Histogram();
+    private final Histogram diskWriteLatency = new Histogram();
+    private final Histogram downloadLatency = new Histogram();
+
+    public Metrics(FileServer server) {
+        this.server = server;
+    }
+
+    public Histogram getAckLatency() {
+        return ackLatency;
+    }
+
+    public Histogram getDiskWriteLatency() {
+        return diskWriteLatency;
+    }
+
+    public Histogram getDownloadLatency() {
+        return downloadLatency;
+    }
+
+    /**
+     * Counts an uploaded chunk once it is written.
+     * @param client the name of the client that sent it.
+     * @param fileID the ID of the file.
+     * @param bytes the payload bytes of the chunk.
+     */
+    public void chunkReceived(String client, long fileID, long bytes) {
+        bytesReceived.add(bytes);
+        chunksReceived.increment();
+        adder(bytesReceivedByClient, client == null ? "" : client).add(bytes);
+        adder(bytesReceivedByTransfer, fileID).add(bytes);
+    }
+
+    /**
+     * Counts a download chunk once it is read.
+     * @param client the name of the client that asked for it.
+     * @param bytes the payload bytes of the chunk.
+     */
+    public void chunkSent(String client, long bytes) {
+        bytesSent.add(bytes);
+        chunksSent.increment();
+        adder(bytesSentByClient, client == null ? "" : client).add(bytes);
+    }
+
+    /**
+     * Counts an uploaded chunk that did not match its checksum and is sent again.
+     */
+    public void chunkDamaged() {
+        chunksDamaged.increment();
+    }
+
+    /**
+     * Counts a complete upload that did not match the hash its client sent.
+     */
+    public void uploadDamaged() {
+        uploadsDamaged.increment();
+    }
+
+    /**
+     * Counts the bytes compression kept off the network.
+     * @param bytes the raw length of a chunk less the length it was sent with.
+     */
+    public void compressionSaved(long bytes) {
+        compressionSaved.add(bytes);
+    }
+
+    /**
+     * Counts the bytes of delta uploads copied from a stored version instead of sent.
+     * @param bytes the bytes copied.
+     */
+    public void deltaCopied(long bytes) {
+        deltaCopied.add(bytes);
+    }
+
+    /**
+     * Forgets the per transfer count of a completed upload, the server-wide and per client
+     * counts keep its bytes.
+     * @param fileID the ID of the file.
+     */
+    public void uploadEnded(long fileID) {
+        bytesReceivedByTransfer.remove(fileID);
+    }
+
+    private static <K> LongAdder adder(ConcurrentHashMap<K, LongAdder> map, K key) {
+        LongAdder adder = map.get(key);
+        if (adder == null) {
+            LongAdder created = new LongAdder();
+            adder = map.putIfAbsent(key, created);
+            if (adder == null) {
+                adder = created;
+            }
+        }
+        return adder;
+    }
+
+    private static <K> Map<K, Long> snapshot(Map<K, LongAdder> map) {
+        Map<K, Long> values = new TreeMap<>();
+        for (Map.Entry<K, LongAdder> entry : map.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        return values;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getChunksReceived() {
+        return chunksReceived.getCount();
+    }
+
+    @Override
+    public long getChunksSent() {
+        return chunksSent.getCount();
+    }
+
+    @Override
+    public long getChunksDamaged() {
+        return chunksDamaged.sum();
+    }
+
+    @Override
+    public long getUploadsDamaged() {
+        return uploadsDamaged.sum();
+    }
+
+    @Override
+    public long getCompressionSaved() {
+        return compressionSaved.sum();
+    }
+
+    @Override
+    public long getDeltaCopied() {
+        return deltaCopied.sum();
+    }
+
+    @Override
+    public double getChunksReceivedPerSecond() {
+        return chunksReceived.getRate();
+    }
+
+    @Override
+    public double getChunksSentPerSecond() {
+        return chunksSent.getRate();
+    }
+
+    @Override
+    public int getActiveTransfers() {
+        return server.getActiveTransfers();
+    }
+
+    @Override
+    public long getOpenFileDescriptors() {
+        return ProcessStats.getDefault().getOpenFileDescriptors();
+    }
+
+    @Override
+    public int getOpenDownloadChannels() {
+        return server.getOpenDownloadChannels();
+    }
+
+    @Override
+    public int getDiskQueueDepth() {
+        return server.getDiskQueueDepth();
+    }
+
+    @Override
+    public int getEventLoopQueueDepth() {
+        return server.getEventLoopQueueDepth();
+    }
+
+    @Override
+    public long getAckLatencyP50() {
+        return ackLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getAckLatencyP99() {
+        return ackLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getDiskWriteLatencyP50() {
+        return diskWriteLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getDiskWriteLatencyP99() {
+        return diskWriteLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getDownloadLatencyP50() {
+        return downloadLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getDownloadLatencyP99() {
+        return downloadLatency.getPercentile(99);
+    }
+
+    @Override
+    public Map<String, Long> getBytesReceivedByClient() {
+        return snapshot(bytesReceivedByClient);
+    }
+
+    @Override
+    public Map<String, Long> getBytesSentByClient() {
+        return snapshot(bytesSentByClient);
+    }
+
+    @Override
+    public Map<Long, Long> getBytesReceivedByTransfer() {
+        return snapshot(bytesReceivedByTransfer);
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format.
+     * @return the scrape body.
+     */
+    public String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        counter(text, "fileserver_received_bytes_total", "Payload bytes of uploaded chunks written", getBytesReceived());
+        counter(text, "fileserver_sent_bytes_total", "Payload bytes of download chunks read", getBytesSent());
+        counter(text, "fileserver_received_chunks_total", "Uploaded chunks written", getChunksReceived());
+        counter(text, "fileserver_sent_chunks_total", "Download chunks read", getChunksSent());
+        counter(text, "fileserver_damaged_chunks_total", "Uploaded chunks that failed their checksum", getChunksDamaged());
+        counter(text, "fileserver_damaged_uploads_total", "Complete uploads that did not match their hash", getUploadsDamaged());
+        counter(text, "fileserver_compression_saved_bytes_total", "Bytes compression kept off the network", getCompressionSaved());
+        counter(text, "fileserver_delta_copied_bytes_total", "Bytes of delta uploads copied from a stored version", getDeltaCopied());
+        labelled(text, "fileserver_client_received_bytes_total", "Uploaded payload bytes per client", "client", getBytesReceivedByClient());
+        labelled(text, "fileserver_client_sent_bytes_total", "Downloaded payload bytes per client", "client", getBytesSentByClient());
+        labelled(text, "fileserver_transfer_received_bytes_total", "Uploaded payload bytes per active upload", "file", getBytesReceivedByTransfer());
+        gauge(text, "fileserver_active_transfers", "Uploads in progress", getActiveTransfers());
+        gauge(text, "fileserver_open_file_descriptors", "Open file descriptors of the process", getOpenFileDescriptors());
+        gauge(text, "fileserver_open_download_channels", "Files open for downloads", getOpenDownloadChannels());
+        gauge(text, "fileserver_disk_queue_depth", "Chunk reads and writes waiting for a disk thread", getDiskQueueDepth());
+        gauge(text, "fileserver_event_loop_queue_depth", "Tasks waiting on the Netty event loops", getEventLoopQueueDepth());
+        histogram(text, "fileserver_chunk_ack_seconds", "Time from receiving an uploaded chunk to acking it", ackLatency);
+        histogram(text, "fileserver_disk_write_seconds", "Time DataWriter takes to write a chunk", diskWriteLatency);
+        histogram(text, "fileserver_download_seconds", "Time from a download request to its reply", downloadLatency);
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void labelled(StringBuilder text, String name, String help, String label, Map<?, Long> values) {
+        header(text, name, help, "counter");
+        for (Map.Entry<?, Long> entry : values.entrySet()) {
+            text.append(name).append('{').append(label).append("=\"").append(escape(String.valueOf(entry.getKey())))
+                    .append("\"} ").append(entry.getValue()).append('\n');
+        }
+    }
+
+    private static void histogram(StringBuilder text, String name, String help, Histogram histogram) {
+        header(text, name, help, "histogram");
+        long cumulative = 0;
+        for (int i = 0; i < Histogram.BUCKETS - 1; i++) {
+            cumulative += histogram.getBucket(i);
+            text.append(name).append("_bucket{le=\"").append(Histogram.getUpperBound(i) / 1e6).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += histogram.getBucket(Histogram.BUCKETS - 1);
+        text.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        text.append(name).append("_sum ").append(histogram.getSum() / 1e9).append('\n');
+        text.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * A counter that also knows how fast it went up since it was last asked, at most once a second.
+     */
+    private static class Rate {
+
+        private final LongAdder count = new LongAdder();
+        private long lastCount;
+        private long lastTime = System.nanoTime();
+        private double rate;
+
+        void increment() {
+            count.increment();
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        synchronized double getRate() {
+            long now = System.nanoTime();
+            if (now - lastTime >= 1000000000L) {
+                long current = count.sum();
+                rate = (current - lastCount) * 1e9 / (now - lastTime);
+                lastCount = current;
+                lastTime = now;
+            }
+            return rate;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MetricsEndpoint serves the server metrics as Prometheus text on /metrics. It only listens
+ * on the loopback address, a scraper on another host goes through an agent or a tunnel.
+ */
+public class MetricsEndpoint {
+
+    private final Metrics metrics;
+    private final int port;
+    private HttpServer http;
+
+    /**
+     * @param metrics the metrics to serve.
+     * @param port the loopback port to listen on.
+     */
+    public MetricsEndpoint(Metrics metrics, int port) {
+        this.metrics = metrics;
+        this.port = port;
+    }
+
+    /**
+     * Starts listening.
+     * @throws IOException if the port cannot be bound.
+     */
+    public void start() throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        http.start();
+    }
+
+    /**
+     * Stops listening.
+     */
+    public void stop() {
+        if (http != null) {
+            http.stop(0);
+            http = null;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * MetricsMXBean is the JMX view of the server metrics, registered as server:type=Metrics
+ * with the port of the server. Latencies are in microseconds, as bucket upper bounds.
+ */
+public interface MetricsMXBean {
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    long getChunksReceived();
+
+    long getChunksSent();
+
+    long getChunksDamaged();
+
+    long getUploadsDamaged();
+
+    long getCompressionSaved();
+
+    long getDeltaCopied();
+
+    double getChunksReceivedPerSecond();
+
+    double getChunksSentPerSecond();
+
+    int getActiveTransfers();
+
+    long getOpenFileDescriptors();
+
+    int getOpenDownloadChannels();
+
+    int getDiskQueueDepth();
+
+    int getEventLoopQueueDepth();
+
+    long getAckLatencyP50();
+
+    long getAckLatencyP99();
+
+    long getDiskWriteLatencyP50();
+
+    long getDiskWriteLatencyP99();
+
+    long getDownloadLatencyP50();
+
+    long getDownloadLatencyP99();
+
+    Map<String, Long> getBytesReceivedByClient();
+
+    Map<String, Long> getBytesSentByClient();
+
+    Map<Long, Long> getBytesReceivedByTransfer();
+}
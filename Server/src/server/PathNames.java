@@ -0,0 +1,60 @@
+package server;
+
+/**
+ * PathNames cleans the names clients upload files under. A file uploaded from a directory
+ * keeps its path relative to that directory, so a name may contain directories, but never
+ * one that leads out of the storage, an absolute path or control characters.
+ */
+public class PathNames {
+
+    //  longest name kept, longer ones keep their end, where the file name is
+    public static final int MAX_LENGTH = 1024;
+
+    private PathNames() {
+    }
+
+    /**
+     * @param name a file name sent by a client, possibly a relative path.
+     * @param fileID the ID the file gets.
+     * @return the name as a relative path with / between directories and without empty,
+     * "." or ".." parts, or a name made from the ID if nothing is left.
+     */
+    public static String sanitize(String name, long fileID) {
+        StringBuilder clean = new StringBuilder();
+        if (name != null) {
+            for (String part : name.replace('\\', '/').split("/")) {
+                StringBuilder segment = new StringBuilder();
+                for (int i = 0; i < part.length(); i++) {
+                    char c = part.charAt(i);
+                    if (!Character.isISOControl(c)) {
+                        segment.append(c);
+                    }
+                }
+                String text = segment.toString().trim();
+                if (text.isEmpty() || text.equals(".") || text.equals("..")) {
+                    continue;
+                }
+                if (clean.length() > 0) {
+                    clean.append('/');
+                }
+                clean.append(text);
+            }
+        }
+        if (clean.length() == 0) {
+            return "file-" + fileID;
+        }
+        if (clean.length() > MAX_LENGTH) {
+            String tail = clean.substring(clean.length() - MAX_LENGTH);
+            return tail.startsWith("/") ? tail.substring(1) : tail;
+        }
+        return clean.toString();
+    }
+
+    /**
+     * @param path a name cleaned by sanitize.
+     * @return the last part of the path, the name of the file itself.
+     */
+    public static String baseName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
@@ -0,0 +1,88 @@
+package server;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.UnixOperatingSystemMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * ProcessStats reads what the JVM knows about the server process: garbage collections, the
+ * longest collection pause and the open file descriptors. Pauses are taken from the
+ * collection notifications of the JVM, so the longest one is known even between samples.
+ */
+public class ProcessStats {
+
+    private static final ProcessStats INSTANCE = new ProcessStats();
+
+    private final AtomicLong longestPause = new AtomicLong();
+
+    private ProcessStats() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener(new NotificationListener() {
+                    @Override
+                    public void handleNotification(Notification notification, Object handback) {
+                        if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                            long pause = info.getGcInfo().getDuration();
+                            long longest;
+                            do {
+                                longest = longestPause.get();
+                            } while (pause > longest && !longestPause.compareAndSet(longest, pause));
+                        }
+                    }
+                }, null, null);
+            }
+        }
+    }
+
+    public static ProcessStats getDefault() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the number of collections since the JVM started, over all collectors.
+     */
+    public long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * @return the milliseconds spent collecting since the JVM started, over all collectors.
+     */
+    public long getGcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * @return the longest collection in milliseconds seen since the stats were first used.
+     */
+    public long getLongestGcPause() {
+        return longestPause.get();
+    }
+
+    /**
+     * @return the open file descriptors of the process, or -1 where the JVM cannot tell.
+     */
+    public long getOpenFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof UnixOperatingSystemMXBean) {
+            return ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,29 @@
+package server;
+
+import data.DataClient;
+
+/**
+ * RegistryListener is notified when the ClientRegistry changes, so views such as the
+ * client table can follow the registry instead of holding the client state themselves.
+ * The methods are called on the thread that changed the registry, usually a Netty thread.
+ */
+public interface RegistryListener {
+
+    /**
+     * Called after a client connected and was added to the registry.
+     * @param client the DataClient that was added.
+     */
+    void clientAdded(DataClient client);
+
+    /**
+     * Called after a client disconnected and was removed from the registry.
+     * @param client the DataClient that was removed.
+     */
+    void clientRemoved(DataClient client);
+
+    /**
+     * Called after the details of a client, such as its name, changed.
+     * @param client the DataClient that changed.
+     */
+    void clientChanged(DataClient client);
+}
@@ -1,56 +1,60 @@
 package server;
 
-import com.corundumstudio.socketio.AckRequest;
-import com.corundumstudio.socketio.Configuration;
-import com.corundumstudio.socketio.SocketIOClient;
-import com.corundumstudio.socketio.SocketIOServer;
-import com.corundumstudio.socketio.listener.ConnectListener;
-import com.corundumstudio.socketio.listener.DataListener;
-import com.corundumstudio.socketio.listener.DisconnectListener;
 import data.DataClient;
-import data.DataFileSending;
 import data.DataFileServer;
-import data.DataInitFile;
-import data.DataRequestFile;
 import data.DataWriter;
 import java.awt.Color;
 import java.awt.Component;
-import java.io.File;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.ArrayList;
-import java.util.List;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.swing.JTable;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.DefaultTableModel;
+import swing.PanelStatus;
 
 
 /**
- * The Server class is responsible for handling file transfers between clients using Socket.IO.
- * It extends JFrame to provide a GUI for monitoring connected clients
- * and managing file transfers. This class sets up the server configurations, event listeners,
- * and handles client connections, disconnections, and file transfer processes.
+ * The Server class is the Swing monitor of the file server. It extends JFrame to provide
+ * a GUI for monitoring connected clients and their file transfers. The Socket.IO side lives
+ * in FileServer, which this window starts and observes through RegistryListener and
+ * TransferListener callbacks. For machines without a display, use ServerMain instead.
  */
 public class Server extends javax.swing.JFrame {
     
-    private final int SERVER_PORT = 9999;
-    private final List<DataFileServer> listFiles = new ArrayList<>();
-    private SocketIOServer server;
+    private final FileServer fileServer;
+    //  Status panel of every client, only touched on the event dispatch thread
+    private final Map<DataClient, PanelStatus> statusPanels = new HashMap<>();
     
     /**
     * Initializes the server GUI and sets up the custom table cell renderer for displaying client statuses.
     * The table cell renderer customizes the display of the client status in the table.
     */
     public Server() {
+        this(new ServerConfig());
+    }
+    
+    /**
+    * Initializes the server GUI for a file server started with the given configuration.
+    * @param config the configuration the file server is started with.
+    */
+    public Server(ServerConfig config) {
         initComponents();
+        fileServer = new FileServer(config);
+        fileServer.getClients().addListener(tableView);
+        fileServer.addTransferListener(transferView);
         table.getColumnModel().getColumn(3).setCellRenderer(new DefaultTableCellRenderer() {
             @Override
             public Component getTableCellRendererComponent(JTable jtable, Object o, boolean bln, boolean bln1, int i, int i1) {
                 Component component = super.getTableCellRendererComponent(jtable, o, bln, bln1, i, i1);
                 Object data = jtable.getValueAt(i, 0);
-                if (data instanceof DataClient) {
-                    Component c = ((DataClient) data).getStatus();
+                if (data instanceof DataClient && statusPanels.containsKey(data)) {
+                    Component c = statusPanels.get(data);
                     c.setBackground(component.getBackground());
                     return c;
                 } else {
@@ -156,112 +160,21 @@ public class Server extends javax.swing.JFrame {
         setLocationRelativeTo(null);
     }// </editor-fold>//GEN-END:initComponents
     /**
-    * Starts the Socket.IO server and initializes event listeners for various client actions.
+    * Starts the file server and attaches this window to it.
     * This method is triggered by clicking the start button in the GUI.
     * @param evt the ActionEvent triggered by clicking the start button.
     */
     private void startServerButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_startServerButtonActionPerformed
-        if (server == null) {
-            Configuration configuration = new Configuration();
-            configuration.setPort(SERVER_PORT);
-            server = new SocketIOServer(configuration);
-            
-            connectionStatusLabel.setText("Server running!");
-            connectionStatusLabel.setForeground(Color.RED);
-            
-            //  Add event to server when client connected
-            server.addConnectListener(new ConnectListener() {
-                @Override
-                public void onConnect(SocketIOClient socketIOClient) {
-                    //  This method runs when new client connected and doesn't have a name 
-                    DataClient client = new DataClient(socketIOClient, "", table);
-                    //  Adds this data to the table
-                    addTableRow(client);
-                }
-            });
-            
-            // Listening for the function onDisconnect();
-            server.addDisconnectListener(new DisconnectListener() {
-                @Override
-                public void onDisconnect(SocketIOClient socketIOClient) {
-                    removeClient(socketIOClient);
-                }
-            });
-            
-            // Listening for the function setUserName();
-            server.addEventListener("set_user", String.class, new DataListener<String>() {
-                @Override
-                public void onData(SocketIOClient socketIOClient, String t, AckRequest ackReq) throws Exception {
-                    setUserName(socketIOClient, t);
-                }
-            });
-            
-            // Listening for initFileTransfer();
-            server.addEventListener("send_file", DataInitFile.class, new DataListener<DataInitFile>() {
-                @Override
-                public void onData(SocketIOClient socketIOClient, DataInitFile dataInit, AckRequest ackReq) throws Exception {
-                    int fileID = initFileTransfer(socketIOClient, dataInit);
-                    if (fileID > 0) {
-                        //  call back function to client
-                        ackReq.sendAckData(true, fileID);
-                    }
-                }
-            });
-            
-            // Listening for writeFile() and executes.;
-            server.addEventListener("sending", DataFileSending.class, new DataListener<DataFileSending>() {
-                @Override
-                public void onData(SocketIOClient socketIOClient, DataFileSending t, AckRequest ackReq) throws Exception {
-                    if (!t.isFinish()) {
-                        writeFile(socketIOClient, t);
-                        ackReq.sendAckData(true);
-                    } else {
-                        ackReq.sendAckData(false);
-                        DataFileServer data = closeFile(socketIOClient, t);
-                        if (data != null) {
-                            server.getBroadcastOperations().sendEvent("new_file", data);
-                        }
-                    }
-                }
-            });
-            
-            server.addEventListener("req_file_length", Integer.class, new DataListener<Integer>() {
-                @Override
-                public void onData(SocketIOClient socketIOClient, Integer t, AckRequest ackReq) throws Exception {
-                    try {
-                        long length = getFileLength(socketIOClient, t);
-                        if (length > 0) {
-                            ackReq.sendAckData(length + "");
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-            
-            server.addEventListener("request", String.class, new DataListener<String>() {
-                @Override
-                public void onData(SocketIOClient socketIOClient, String t, AckRequest ackReq) throws Exception {
-                    if (t.equals("list_file")) {
-                        ackReq.sendAckData(listFiles.toArray());
-                    }
-                }
-            });
-            
-            server.addEventListener("request_file", DataRequestFile.class, new DataListener<DataRequestFile>() {
-                @Override
-                public void onData(SocketIOClient socketIOClient, DataRequestFile t, AckRequest ackReq) throws Exception {
-                    try {
-                        byte b[] = getFile(t);
-                        if (b != null) {
-                            ackReq.sendAckData(b);
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-            server.start();
+        if (!fileServer.isRunning()) {
+            try {
+                fileServer.start();
+                System.out.print(fileServer.getStartupReport());
+                connectionStatusLabel.setText("Server running!");
+                connectionStatusLabel.setForeground(Color.RED);
+            } catch (Exception e) {
+                e.printStackTrace();
+                connectionStatusLabel.setText("Server failed.");
+            }
         }
     }//GEN-LAST:event_startServerButtonActionPerformed
     /**
@@ -285,173 +198,226 @@ public class Server extends javax.swing.JFrame {
             menu.show(table, evt.getX(), evt.getY());
         }
     }//GEN-LAST:event_tableMouseReleased
+    /**
+     * Keeps the table in step with the client registry. The registry calls back on Netty
+     * threads, so every change to the table model is handed over to the event dispatch thread.
+     */
+    private final RegistryListener tableView = new RegistryListener() {
+        @Override
+        public void clientAdded(DataClient client) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    addTableRow(client);
+                }
+            });
+        }
+
+        @Override
+        public void clientRemoved(DataClient client) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    //  uploads of a gone client make no progress, its status panel goes with it
+                    for (Iterator<Watch> it = watches.values().iterator(); it.hasNext();) {
+                        if (it.next().client == client) {
+                            it.remove();
+                        }
+                    }
+                    removeTableRow(client);
+                }
+            });
+        }
+
+        @Override
+        public void clientChanged(DataClient client) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    updateTableRow(client);
+                }
+            });
+        }
+    };
+
     /**
      * Adds a row to the table representing the connected client.
      * @param data the DataClient object representing the client.
      */
     private void addTableRow(DataClient data) {
         DefaultTableModel model = (DefaultTableModel) table.getModel();
+        statusPanels.put(data, new PanelStatus());
         model.addRow(data.toRowTable(table.getRowCount() + 1));
     }
+    
     /**
-     * Removes the client from the table when they disconnect.
-     * @param client the SocketIOClient object representing the client.
+     * Removes the row of a client that disconnected.
+     * @param data the DataClient object representing the client.
      */
-    private void removeClient(SocketIOClient client) {
+    private void removeTableRow(DataClient data) {
         DefaultTableModel model = (DefaultTableModel) table.getModel();
-        for (int i = 0; i < table.getRowCount(); i++) {
-            DataClient data = (DataClient) table.getValueAt(i, 0);
-            if (data.getClient() == client) {
-                model.removeRow(i);
-                break;
-            }
+        int row = findTableRow(data);
+        statusPanels.remove(data);
+        if (row >= 0) {
+            model.removeRow(row);
         }
     }
     
     /**
-     * Sets the username for the connected client in the table.
-     * @param client the SocketIOClient object representing the client.
-     * @param name the username to be set for the client.
+     * Shows the current name of a client in its row.
+     * @param data the DataClient object representing the client.
      */
-    private void setUserName(SocketIOClient client, String name) {
+    private void updateTableRow(DataClient data) {
         DefaultTableModel model = (DefaultTableModel) table.getModel();
-        for (int i = 0; i < table.getRowCount(); i++) {
-            DataClient data = (DataClient) table.getValueAt(i, 0);
-            if (data.getClient() == client) {
-                data.setName(name);
-                model.setValueAt(name, i, 2);
-                break;
-            }
+        int row = findTableRow(data);
+        if (row >= 0) {
+            model.setValueAt(data.getName(), row, 2);
         }
     }
     
     /**
-    * Initializes the file transfer process for a client.
-    * @param client the SocketIOClient object representing the client.
-    * @param dataInit the DataInitFile object containing initial file data.
-    * @return the ID of the initialized file transfer.
-    */
-    private int initFileTransfer(SocketIOClient client, DataInitFile dataInit) {
-        int id = 0;
+     * Finds the row showing a client. Only used on the event dispatch thread when the view changes.
+     * @param data the DataClient object representing the client.
+     * @return the row index, or -1 if the client is not shown.
+     */
+    private int findTableRow(DataClient data) {
         for (int i = 0; i < table.getRowCount(); i++) {
-            DataClient data = (DataClient) table.getValueAt(i, 0);
-            if (data.getClient() == client) {
-                try {
-                    id = generateFileID();
-                    File file = new File("C:/Users/bobas/Desktop/socket_data" + id + "-" + dataInit.getFileName());
-                    DataWriter writer = new DataWriter(file, dataInit.getFileSize());
-                    data.addWrite(writer, id);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                break;
+            if (table.getValueAt(i, 0) == data) {
+                return i;
             }
         }
-        return id;
+        return -1;
     }
 
+    //  Frames per second at which the progress of running uploads is shown
+    private static final int FRAMES_PER_SECOND = 15;
+
     /**
-    * Writes data to the file being transferred.
-    * @param client the SocketIOClient object representing the client.
-    * @param file the DataFileSending object containing the data to be written.
-    * @return true if the write operation was successful, false otherwise.
-    */
-    private boolean writeFile(SocketIOClient client, DataFileSending file) {
-        boolean error = false;
-        for (int i = 0; i < table.getRowCount(); i++) {
-            DataClient data = (DataClient) table.getValueAt(i, 0);
-            if (data.getClient() == client) {
-                try {
-                    data.writeFile(file.getData(), file.getFileID());
-                } catch (Exception e) {
-                    error = true;
-                    e.printStackTrace();
-                }
-                break;
-            }
+     * An upload shown in the window and the percentage last shown for it.
+     */
+    private static class Watch {
+
+        private final DataClient client;
+        private final DataWriter writer;
+        private boolean finished;
+        private int shown = -1;
+
+        private Watch(DataClient client, DataWriter writer) {
+            this.client = client;
+            this.writer = writer;
         }
-        //  return true if not error
-        return !error;
     }
-    
+
+    //  Running uploads by fileID, only changed on the event dispatch thread so a watch never
+    //  exists before its status item, Netty threads hand their changes over with invokeLater
+    private final Map<Long, Watch> watches = new ConcurrentHashMap<>();
+
     /**
-     * Closes the file being transferred and adds it to the list of completed transfers.
-     * @param client the SocketIOClient object representing the client.
-     * @param file the DataFileSending object containing the data to be closed.
-     * @return the DataFileServer object representing the completed file transfer.
+     * Samples the byte counters of the running uploads on the event dispatch thread, so
+     * Netty threads never touch Swing and the table is repainted at most once per frame.
      */
-    private DataFileServer closeFile(SocketIOClient client, DataFileSending file) {
-        DataFileServer fileServer = null;
-        for (int i = 0; i < table.getRowCount(); i++) {
-            DataClient data = (DataClient) table.getValueAt(i, 0);
-            if (data.getClient() == client) {
-                try {
-                    fileServer = data.getDataFileServer(file.getFileID());
-                    listFiles.add(fileServer);
-                    data.closeWriter(file.getFileID());
-                } catch (Exception e) {
-                    e.printStackTrace();
+    private final Timer progressTimer = new Timer(1000 / FRAMES_PER_SECOND, new ActionListener() {
+        @Override
+        public void actionPerformed(ActionEvent ae) {
+            boolean changed = false;
+            for (Map.Entry<Long, Watch> entry : watches.entrySet()) {
+                Watch watch = entry.getValue();
+                boolean finished = watch.finished;
+                int percentage = finished ? 100 : (int) watch.writer.getPercentage();
+                if (percentage != watch.shown) {
+                    watch.shown = percentage;
+                    PanelStatus status = statusPanels.get(watch.client);
+                    if (status != null) {
+                        status.updateStatus(entry.getKey(), percentage);
+                        changed = true;
+                    }
+                }
+                if (finished) {
+                    watches.remove(entry.getKey());
                 }
-                break;
             }
-        }
-        return fileServer;
-    }
-    
-    /**
-     * Retrieves the length of the file being transferred.
-     * @param client the SocketIOClient object representing the client.
-     * @param fileID the ID of the file being transferred.
-     * @return the length of the file in bytes.
-     * @throws IOException if an I/O error occurs.
-     */
-    private long getFileLength(SocketIOClient client, int fileID) throws IOException {
-        for (int i = 0; i < table.getRowCount(); i++) {
-            DataClient data = (DataClient) table.getValueAt(i, 0);
-            if (data.getClient() == client) {
-                return data.getFileLength(fileID);
+            if (changed) {
+                table.repaint();
+            }
+            if (watches.isEmpty()) {
+                progressTimer.stop();
             }
         }
-        return 0;
-    }
-    
+    });
+
     /**
-     * Generates a unique file ID for each file transfer.
-     * returns the generated file ID.
+     * Registers the uploads of every client with the progress timer. Progress itself is not
+     * reported per chunk, the timer reads it from the DataWriter counters.
      */
-    private int fileID;
-    private synchronized int generateFileID() {
-        fileID++;
-        return fileID;
-    }
+    private final TransferListener transferView = new TransferListener() {
+
+        @Override
+        public void transferStarted(DataClient client, long fileID, DataWriter writer) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    PanelStatus status = statusPanels.get(client);
+                    if (status != null) {
+                        status.addItem(fileID, writer.getFile().getName(), writer.getMaxFileSize());
+                        watches.put(fileID, new Watch(client, writer));
+                        // Update table row height
+                        autoRowHeight(table, 3);
+                    }
+                    if (!progressTimer.isRunning()) {
+                        progressTimer.start();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void transferProgress(DataClient client, long fileID, DataWriter writer) {
+        }
+
+        @Override
+        public void transferFinished(DataClient client, DataFileServer file) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    Watch watch = watches.get(file.getFileID());
+                    if (watch != null) {
+                        watch.finished = true;
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void transferAborted(DataClient client, long fileID) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    watches.remove(fileID);
+                    PanelStatus status = statusPanels.get(client);
+                    if (status != null) {
+                        status.removeItem(fileID);
+                    }
+                }
+            });
+        }
+    };
 
     /**
-     * Retrieves the file data for the requested file.
-     * @param data the DataRequestFile object containing the request details.
-     * @return the file data as a byte array, or null if the end of the file is reached.
-     * @throws IOException if an I/O error occurs.
+     * Adjusts the row height of the specified table based on the preferred height of the cells in the specified columns.
+     * @param table the JTable whose row height is to be adjusted.
+     * @param cols the columns to consider for height adjustment.
      */
-    private byte[] getFile(DataRequestFile data) throws IOException {
-        for (DataFileServer d : listFiles) {
-            if (d.getFileID() == data.getFileID()) {
-                RandomAccessFile accFile = new RandomAccessFile(d.getOutPutPath(), "r");
-                accFile.seek(data.getLength());
-                long filePointer = data.getLength();
-                long fileSize = d.getFileSizeLength();
-                if (filePointer != fileSize) {
-                    int max = 2000;
-                    //  2000 is max send file per package
-                    //  we spite it to send large file
-                    long length = filePointer + max >= fileSize ? fileSize - filePointer : max;
-                    byte[] b = new byte[(int) length];
-                    accFile.read(b);
-                    return b;
-                } else {
-                    return null;
+    private void autoRowHeight(JTable table, int... cols) {
+        for (int row = 0; row < table.getRowCount(); row++) {
+            int rowHeight = table.getRowHeight();
+            for (int col : cols) {
+                Component comp = table.prepareRenderer(table.getCellRenderer(row, col), row, col);
+                if (comp.getPreferredSize().height > rowHeight) {
+                    rowHeight = comp.getPreferredSize().height;
                 }
             }
+            table.setRowHeight(row, rowHeight);
         }
-        return null;
     }
 
     /**
@@ -481,10 +447,19 @@ public class Server extends javax.swing.JFrame {
         }
         //</editor-fold>
 
+        ServerConfig config;
+        try {
+            config = ServerConfig.fromArgs(args);
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            config = new ServerConfig();
+        }
+        final ServerConfig serverConfig = config;
+
         /* Create and display the form */
         java.awt.EventQueue.invokeLater(new Runnable() {
             public void run() {
-                new Server().setVisible(true);
+                new Server(serverConfig).setVisible(true);
             }
         });
     }
@@ -0,0 +1,373 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * ServerConfig holds the settings the file server is started with. Values come from the
+ * defaults, then from an optional properties file, then from command line flags.
+ *
+ * Properties file keys and matching flags:
+ * <pre>
+ * server.port      --port=9999
+ * storage.root     --storage=/srv/files
+ * threads.boss     --boss-threads=1
+ * threads.worker   --worker-threads=8
+ * frame.max        --max-frame=2097152
+ * disk.threads     --disk-threads=4
+ * disk.queue       --disk-queue=256
+ * transport        --transport=auto        auto, epoll or nio
+ * buffers.pooled   --pooled-buffers=true
+ * buffers.direct   --direct-buffers=true
+ * tcp.nodelay      --tcp-nodelay=true
+ * tcp.sndbuf       --send-buffer=0         0 keeps the OS default
+ * tcp.rcvbuf       --receive-buffer=0
+ * tcp.backlog      --backlog=1024
+ * tcp.keepalive    --keep-alive=false
+ * tcp.reuseaddr    --reuse-address=false
+ * metrics.port     --metrics-port=0        Prometheus text on 127.0.0.1, 0 turns it off
+ * node.id          --node-id=0             0 to 1023, unique per server behind a balancer
+ * compression      --compression=false     deflate chunks both ways when the content allows
+ * storage.compress --store-compressed=false keep compressible files deflated on disk
+ *                  --config=server.properties
+ * </pre>
+ */
+public class ServerConfig {
+
+    public static final int DEFAULT_PORT = 9999;
+    public static final int DEFAULT_MAX_FRAME_PAYLOAD = 2 * 1024 * 1024;
+
+    private int port = DEFAULT_PORT;
+    private File storageRoot = new File(System.getProperty("user.home"), "socket_data");
+    //  0 lets Netty pick the thread count
+    private int bossThreads;
+    private int workerThreads;
+    private int maxFramePayload = DEFAULT_MAX_FRAME_PAYLOAD;
+    private int diskThreads = DiskExecutor.DEFAULT_STRIPES;
+    //  Disk tasks waiting per disk thread before clients are told to retry
+    private int diskQueue = DiskExecutor.DEFAULT_QUEUE_CAPACITY;
+    //  epoll is used when asked for or on auto, as long as the native library loads
+    private String transport = TunedSocketIOServer.TRANSPORT_AUTO;
+    private boolean pooledBuffers = true;
+    private boolean directBuffers = true;
+    private boolean tcpNoDelay = true;
+    //  0 keeps the OS default
+    private int sendBuffer;
+    private int receiveBuffer;
+    private int backlog = 1024;
+    private boolean tcpKeepAlive;
+    private boolean reuseAddress;
+    private int metricsPort;
+    //  Part of every file ID, so servers sharing clients never hand out the same one
+    private int nodeId;
+    //  Deflate runs at about 70 MB/s a core, it pays off on links slower than that
+    private boolean compression;
+    //  Compressible files are stored in deflated blocks and inflated when downloaded
+    private boolean storeCompressed;
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public File getStorageRoot() {
+        return storageRoot;
+    }
+
+    public void setStorageRoot(File storageRoot) {
+        this.storageRoot = storageRoot;
+    }
+
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    public void setBossThreads(int bossThreads) {
+        this.bossThreads = bossThreads;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getMaxFramePayload() {
+        return maxFramePayload;
+    }
+
+    public void setMaxFramePayload(int maxFramePayload) {
+        this.maxFramePayload = maxFramePayload;
+    }
+
+    public int getDiskThreads() {
+        return diskThreads;
+    }
+
+    public void setDiskThreads(int diskThreads) {
+        this.diskThreads = diskThreads;
+    }
+
+    public int getDiskQueue() {
+        return diskQueue;
+    }
+
+    public void setDiskQueue(int diskQueue) {
+        this.diskQueue = diskQueue;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        if (!TunedSocketIOServer.TRANSPORT_AUTO.equals(transport) && !TunedSocketIOServer.TRANSPORT_EPOLL.equals(transport)
+                && !TunedSocketIOServer.TRANSPORT_NIO.equals(transport)) {
+            throw new IllegalArgumentException("Transport must be auto, epoll or nio but got " + transport);
+        }
+        this.transport = transport;
+    }
+
+    public boolean isPooledBuffers() {
+        return pooledBuffers;
+    }
+
+    public void setPooledBuffers(boolean pooledBuffers) {
+        this.pooledBuffers = pooledBuffers;
+    }
+
+    public boolean isDirectBuffers() {
+        return directBuffers;
+    }
+
+    public void setDirectBuffers(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public int getSendBuffer() {
+        return sendBuffer;
+    }
+
+    public void setSendBuffer(int sendBuffer) {
+        this.sendBuffer = sendBuffer;
+    }
+
+    public int getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    public void setReceiveBuffer(int receiveBuffer) {
+        this.receiveBuffer = receiveBuffer;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    public boolean isTcpKeepAlive() {
+        return tcpKeepAlive;
+    }
+
+    public void setTcpKeepAlive(boolean tcpKeepAlive) {
+        this.tcpKeepAlive = tcpKeepAlive;
+    }
+
+    public boolean isReuseAddress() {
+        return reuseAddress;
+    }
+
+    public void setReuseAddress(boolean reuseAddress) {
+        this.reuseAddress = reuseAddress;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public boolean isStoreCompressed() {
+        return storeCompressed;
+    }
+
+    public void setStoreCompressed(boolean storeCompressed) {
+        this.storeCompressed = storeCompressed;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(int nodeId) {
+        if (nodeId < 0 || nodeId > FileIdAllocator.MAX_NODE) {
+            throw new IllegalArgumentException("Node ID must be between 0 and " + FileIdAllocator.MAX_NODE + " but got " + nodeId);
+        }
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Builds a configuration from command line flags. A --config flag is read first,
+     * so the other flags override what the properties file sets.
+     * @param args the command line arguments.
+     * @return the configuration.
+     * @throws IOException if the properties file cannot be read.
+     * @throws IllegalArgumentException if a flag is unknown or has a bad value.
+     */
+    public static ServerConfig fromArgs(String[] args) throws IOException {
+        ServerConfig config = new ServerConfig();
+        Properties flags = new Properties();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            flags.setProperty(arg.substring(2, split), arg.substring(split + 1));
+        }
+        String path = flags.getProperty("config");
+        if (path != null) {
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(path)) {
+                properties.load(in);
+            }
+            config.load(properties);
+        }
+        for (String name : flags.stringPropertyNames()) {
+            String value = flags.getProperty(name);
+            switch (name) {
+                case "config":
+                    break;
+                case "port":
+                    config.setPort(Integer.parseInt(value));
+                    break;
+                case "storage":
+                    config.setStorageRoot(new File(value));
+                    break;
+                case "boss-threads":
+                    config.setBossThreads(Integer.parseInt(value));
+                    break;
+                case "worker-threads":
+                    config.setWorkerThreads(Integer.parseInt(value));
+                    break;
+                case "max-frame":
+                    config.setMaxFramePayload(Integer.parseInt(value));
+                    break;
+                case "disk-threads":
+                    config.setDiskThreads(Integer.parseInt(value));
+                    break;
+                case "disk-queue":
+                    config.setDiskQueue(Integer.parseInt(value));
+                    break;
+                case "transport":
+                    config.setTransport(value);
+                    break;
+                case "pooled-buffers":
+                    config.setPooledBuffers(Boolean.parseBoolean(value));
+                    break;
+                case "direct-buffers":
+                    config.setDirectBuffers(Boolean.parseBoolean(value));
+                    break;
+                case "tcp-nodelay":
+                    config.setTcpNoDelay(Boolean.parseBoolean(value));
+                    break;
+                case "send-buffer":
+                    config.setSendBuffer(Integer.parseInt(value));
+                    break;
+                case "receive-buffer":
+                    config.setReceiveBuffer(Integer.parseInt(value));
+                    break;
+                case "backlog":
+                    config.setBacklog(Integer.parseInt(value));
+                    break;
+                case "keep-alive":
+                    config.setTcpKeepAlive(Boolean.parseBoolean(value));
+                    break;
+                case "reuse-address":
+                    config.setReuseAddress(Boolean.parseBoolean(value));
+                    break;
+                case "metrics-port":
+                    config.setMetricsPort(Integer.parseInt(value));
+                    break;
+                case "node-id":
+                    config.setNodeId(Integer.parseInt(value));
+                    break;
+                case "compression":
+                    config.setCompression(Boolean.parseBoolean(value));
+                    break;
+                case "store-compressed":
+                    config.setStoreCompressed(Boolean.parseBoolean(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Applies the values found in a properties file, keeping the current value for missing keys.
+     * @param properties the loaded properties.
+     */
+    public void load(Properties properties) {
+        port = Integer.parseInt(properties.getProperty("server.port", String.valueOf(port)));
+        storageRoot = new File(properties.getProperty("storage.root", storageRoot.getPath()));
+        bossThreads = Integer.parseInt(properties.getProperty("threads.boss", String.valueOf(bossThreads)));
+        workerThreads = Integer.parseInt(properties.getProperty("threads.worker", String.valueOf(workerThreads)));
+        maxFramePayload = Integer.parseInt(properties.getProperty("frame.max", String.valueOf(maxFramePayload)));
+        diskThreads = Integer.parseInt(properties.getProperty("disk.threads", String.valueOf(diskThreads)));
+        diskQueue = Integer.parseInt(properties.getProperty("disk.queue", String.valueOf(diskQueue)));
+        setTransport(properties.getProperty("transport", transport));
+        pooledBuffers = Boolean.parseBoolean(properties.getProperty("buffers.pooled", String.valueOf(pooledBuffers)));
+        directBuffers = Boolean.parseBoolean(properties.getProperty("buffers.direct", String.valueOf(directBuffers)));
+        tcpNoDelay = Boolean.parseBoolean(properties.getProperty("tcp.nodelay", String.valueOf(tcpNoDelay)));
+        sendBuffer = Integer.parseInt(properties.getProperty("tcp.sndbuf", String.valueOf(sendBuffer)));
+        receiveBuffer = Integer.parseInt(properties.getProperty("tcp.rcvbuf", String.valueOf(receiveBuffer)));
+        backlog = Integer.parseInt(properties.getProperty("tcp.backlog", String.valueOf(backlog)));
+        tcpKeepAlive = Boolean.parseBoolean(properties.getProperty("tcp.keepalive", String.valueOf(tcpKeepAlive)));
+        reuseAddress = Boolean.parseBoolean(properties.getProperty("tcp.reuseaddr", String.valueOf(reuseAddress)));
+        metricsPort = Integer.parseInt(properties.getProperty("metrics.port", String.valueOf(metricsPort)));
+        setNodeId(Integer.parseInt(properties.getProperty("node.id", String.valueOf(nodeId))));
+        compression = Boolean.parseBoolean(properties.getProperty("compression", String.valueOf(compression)));
+        storeCompressed = Boolean.parseBoolean(properties.getProperty("storage.compress", String.valueOf(storeCompressed)));
+    }
+
+    @Override
+    public String toString() {
+        return "port=" + port + ", storage=" + storageRoot + ", bossThreads=" + bossThreads
+                + ", workerThreads=" + workerThreads + ", maxFrame=" + maxFramePayload
+                + ", diskThreads=" + diskThreads + ", diskQueue=" + diskQueue + ", transport=" + transport
+                + ", pooledBuffers=" + pooledBuffers + ", directBuffers=" + directBuffers + ", tcpNoDelay=" + tcpNoDelay
+                + ", sendBuffer=" + sendBuffer + ", receiveBuffer=" + receiveBuffer + ", backlog=" + backlog
+                + ", keepAlive=" + tcpKeepAlive + ", reuseAddress=" + reuseAddress + ", metricsPort=" + metricsPort + ", nodeId=" + nodeId
+                + ", compression=" + compression + ", storeCompressed=" + storeCompressed;
+    }
+}
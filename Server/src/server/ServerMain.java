@@ -0,0 +1,44 @@
+package server;
+
+/**
+ * ServerMain starts the file server without a window, for machines without a display.
+ * It is configured from a properties file and command line flags, see ServerConfig.
+ */
+public class ServerMain {
+
+    /**
+     * @param args the command line arguments, for example --config=server.properties --port=9999
+     */
+    public static void main(String args[]) {
+        ServerConfig config;
+        try {
+            config = ServerConfig.fromArgs(args);
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java server.ServerMain [--config=file] [--port=n] [--storage=dir]"
+                    + " [--boss-threads=n] [--worker-threads=n] [--max-frame=bytes]"
+                    + " [--disk-threads=n] [--disk-queue=n] [--transport=auto|epoll|nio]"
+                    + " [--pooled-buffers=bool] [--direct-buffers=bool] [--tcp-nodelay=bool]"
+                    + " [--send-buffer=bytes] [--receive-buffer=bytes] [--backlog=n]"
+                    + " [--keep-alive=bool] [--reuse-address=bool] [--metrics-port=n] [--node-id=n]"
+                    + " [--compression=bool] [--store-compressed=bool]");
+            System.exit(2);
+            return;
+        }
+        FileServer server = new FileServer(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        }));
+        try {
+            server.start();
+            System.out.println("Server running: " + config);
+            System.out.print(server.getStartupReport());
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package server;
+
+import data.DataFileServer;
+import data.DataWriter;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TransferJournal is an append-only log of uploads kept in the storage directory, so uploads
+ * can be resumed and stored files are still listed after the server restarts.
+ *
+ * Every line is one entry, the file name comes last because it may contain spaces:
+ * <pre>
+ * BEGIN &lt;fileID&gt; &lt;size&gt; &lt;upload name&gt;
+ * PATH &lt;fileID&gt; &lt;name it is listed under&gt;
+ * HASH &lt;fileID&gt; &lt;SHA-256 the client sent&gt;
+ * BATCH &lt;fileID&gt;
+ * RANGES &lt;fileID&gt; &lt;start&gt;-&lt;end&gt;,...
+ * COMPLETE &lt;fileID&gt; &lt;blob path&gt;
+ * ABORT &lt;fileID&gt;
+ * </pre>
+ * RANGES entries are checkpoints, written after the data they describe was forced to disk,
+ * and the last one of an upload wins. PATH keeps the relative path of a file uploaded from
+ * a directory, only the file name is part of its upload name. BATCH marks the archive of a
+ * batch upload, which is completed by the entries of the files unpacked from it. ABORT
+ * drops an upload its client gave up on. On startup the journal is replayed and rewritten
+ * with one entry per upload, so it does not grow without bound.
+ */
+public class TransferJournal {
+
+    public static final String FILE_NAME = "transfers.journal";
+    //  Bytes written to an upload between two checkpoints of its ranges
+    public static final long CHECKPOINT_BYTES = 8 * 1024 * 1024;
+
+    private final File root;
+    private final File file;
+    private FileOutputStream stream;
+    private Writer out;
+    private long lastFileID;
+    private final Map<Long, DataWriter> pending = new LinkedHashMap<>();
+    private final List<DataFileServer> completed = new ArrayList<>();
+    // Key long is fileID, value is the number of bytes covered at the last checkpoint
+    private final Map<Long, Long> checkpoints = new ConcurrentHashMap<>();
+
+    /**
+     * One upload as read back from the journal.
+     */
+    private static class Entry {
+
+        private final long size;
+        private final String name;
+        private String ranges = "";
+        private String hash;
+        private boolean batch;
+        private boolean complete;
+        private String path;
+        private String listed;
+
+        private Entry(long size, String name) {
+            this.size = size;
+            this.name = name;
+        }
+    }
+
+    /**
+     * @param root the storage directory the journal and the uploads live in.
+     */
+    public TransferJournal(File root) {
+        this.root = root;
+        this.file = new File(root, FILE_NAME);
+    }
+
+    /**
+     * @return the highest file ID found in the journal, new uploads must get a higher one.
+     */
+    public long getLastFileID() {
+        return lastFileID;
+    }
+
+    /**
+     * @return the uploads that were not completed, with their files opened again.
+     */
+    public Map<Long, DataWriter> getPending() {
+        return pending;
+    }
+
+    /**
+     * @return the completed uploads whose files still exist.
+     */
+    public List<DataFileServer> getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Replays the journal, rewrites it compacted and opens it for appending.
+     * @throws IOException if the journal cannot be read or written.
+     */
+    public synchronized void open() throws IOException {
+        Map<Long, Entry> entries = replay();
+        File compacted = new File(root, FILE_NAME + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(compacted), StandardCharsets.UTF_8)) {
+            for (Map.Entry<Long, Entry> e : entries.entrySet()) {
+                long fileID = e.getKey();
+                Entry entry = e.getValue();
+                String path = entry.complete && entry.path != null ? entry.path : entry.name;
+                File stored = new File(root, path);
+                if (!stored.isFile()) {
+                    continue;                           //  deleted while the server was down
+                }
+                writer.write("BEGIN " + fileID + " " + entry.size + " " + entry.name + "\n");
+                if (entry.listed != null) {
+                    writer.write("PATH " + fileID + " " + entry.listed + "\n");
+                }
+                String name = entry.listed != null ? entry.listed : entry.name.substring(entry.name.indexOf("-", 0) + 1);
+                if (entry.complete) {
+                    writer.write("COMPLETE " + fileID + " " + path + "\n");
+                    DataFileServer file = new DataFileServer(fileID, name, DataWriter.convertFile(entry.size), entry.size, stored);
+                    if (BlobStore.isHash(BlobStore.hashOf(stored))) {
+                        file.setHash(BlobStore.hashOf(stored));     //  blobs are named by their hash
+                    }
+                    completed.add(file);
+                } else {
+                    if (entry.hash != null) {
+                        writer.write("HASH " + fileID + " " + entry.hash + "\n");
+                    }
+                    if (entry.batch) {
+                        writer.write("BATCH " + fileID + "\n");
+                    }
+                    writer.write("RANGES " + fileID + " " + entry.ranges + "\n");
+                    DataWriter data = new DataWriter(stored, entry.size);
+                    //  the hash of the part received before the restart is read back with the next chunk
+                    data.setExpectedHash(entry.hash);
+                    data.setBatch(entry.batch);
+                    data.setPath(entry.listed);
+                    for (String range : entry.ranges.split(",")) {
+                        int dash = range.indexOf('-');
+                        if (dash > 0) {
+                            data.getReceived().add(Long.parseLong(range.substring(0, dash)), Long.parseLong(range.substring(dash + 1)));
+                        }
+                    }
+                    pending.put(fileID, data);
+                    checkpoints.put(fileID, data.getReceived().getCovered());
+                }
+            }
+        }
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        stream = new FileOutputStream(file, true);
+        out = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads every entry of the journal. A line cut short by a crash is skipped.
+     * @return the uploads by file ID in the order they were started.
+     * @throws IOException if the journal cannot be read.
+     */
+    private Map<Long, Entry> replay() throws IOException {
+        Map<Long, Entry> entries = new LinkedHashMap<>();
+        if (!file.isFile()) {
+            return entries;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 4);
+                try {
+                    long fileID = Long.parseLong(parts[1]);
+                    lastFileID = Math.max(lastFileID, fileID);
+                    if (parts[0].equals("BEGIN") && parts.length == 4) {
+                        entries.put(fileID, new Entry(Long.parseLong(parts[2]), parts[3]));
+                    } else if (parts[0].equals("PATH") && entries.containsKey(fileID) && parts.length > 2) {
+                        entries.get(fileID).listed = line.substring(parts[0].length() + parts[1].length() + 2);
+                    } else if (parts[0].equals("HASH") && entries.containsKey(fileID) && parts.length > 2 && BlobStore.isHash(parts[2])) {
+                        entries.get(fileID).hash = parts[2];
+                    } else if (parts[0].equals("BATCH") && entries.containsKey(fileID)) {
+                        entries.get(fileID).batch = true;
+                    } else if (parts[0].equals("RANGES") && entries.containsKey(fileID)) {
+                        entries.get(fileID).ranges = parts.length > 2 ? parts[2] : "";
+                    } else if (parts[0].equals("ABORT")) {
+                        entries.remove(fileID);
+                    } else if (parts[0].equals("COMPLETE") && entries.containsKey(fileID)) {
+                        entries.get(fileID).complete = true;
+                        entries.get(fileID).path = parts.length > 2 ? parts[2] : null;
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Skipping journal entry: " + line);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Records a new upload.
+     * @param fileID the ID of the file.
+     * @param writer the DataWriter receiving the file.
+     */
+    public synchronized void begin(long fileID, DataWriter writer) {
+        checkpoints.put(fileID, 0L);
+        String name = writer.getFile().getName();
+        append("BEGIN " + fileID + " " + writer.getFileSize() + " " + name);
+        if (writer.getPath() != null && !writer.getPath().equals(name.substring(name.indexOf("-", 0) + 1))) {
+            append("PATH " + fileID + " " + writer.getPath());
+        }
+        if (writer.getExpectedHash() != null) {
+            append("HASH " + fileID + " " + writer.getExpectedHash());
+        }
+        if (writer.isBatch()) {
+            append("BATCH " + fileID);
+        }
+    }
+
+    /**
+     * Called after a chunk was written, records a checkpoint once enough data arrived
+     * since the last one.
+     * @param fileID the ID of the file.
+     * @param writer the DataWriter receiving the file.
+     */
+    public void written(long fileID, DataWriter writer) {
+        if (isDue(fileID, writer)) {
+            synchronized (this) {
+                if (isDue(fileID, writer)) {            //  another thread may have just written it
+                    checkpoint(fileID, writer);
+                }
+            }
+        }
+    }
+
+    private boolean isDue(long fileID, DataWriter writer) {
+        Long last = checkpoints.get(fileID);
+        return last != null && writer.getReceived().getCovered() - last >= CHECKPOINT_BYTES;
+    }
+
+    /**
+     * Forces the received data to disk and records the ranges it covers.
+     * @param fileID the ID of the file.
+     * @param writer the DataWriter receiving the file.
+     */
+    public synchronized void checkpoint(long fileID, DataWriter writer) {
+        try {
+            long covered = writer.getReceived().getCovered();
+            writer.force();
+            StringBuilder ranges = new StringBuilder();
+            for (long[] range : writer.getReceived().getRanges()) {
+                if (ranges.length() > 0) {
+                    ranges.append(',');
+                }
+                ranges.append(range[0]).append('-').append(range[1]);
+            }
+            append("RANGES " + fileID + " " + ranges);
+            checkpoints.put(fileID, covered);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Records a finished upload and where its content is stored.
+     * @param fileID the ID of the file.
+     * @param path the path of the content relative to the storage directory.
+     */
+    public synchronized void complete(long fileID, String path) {
+        append("COMPLETE " + fileID + " " + path);
+        checkpoints.remove(fileID);
+    }
+
+    /**
+     * Records an upload its client gave up on, its file is deleted.
+     * @param fileID the ID of the file.
+     */
+    public synchronized void aborted(long fileID) {
+        append("ABORT " + fileID);
+        checkpoints.remove(fileID);
+    }
+
+    /**
+     * Records a file that was completed without an upload because its content was stored already.
+     * @param fileID the ID of the file.
+     * @param size the size of the file.
+     * @param name the upload name of the file.
+     * @param path the path of the content relative to the storage directory.
+     */
+    public synchronized void stored(long fileID, long size, String name, String path) {
+        append("BEGIN " + fileID + " " + size + " " + name);
+        append("COMPLETE " + fileID + " " + path);
+    }
+
+    /**
+     * Records the files unpacked from a batch upload and the end of the batch, syncing the
+     * journal once for all of them.
+     * @param batchID the ID of the batch upload.
+     * @param archive the path of the archive relative to the storage directory.
+     * @param files the unpacked files.
+     * @param paths the paths of their content relative to the storage directory, in the same order.
+     */
+    public synchronized void unpacked(long batchID, String archive, List<DataFileServer> files, List<String> paths) {
+        for (int i = 0; i < files.size(); i++) {
+            DataFileServer file = files.get(i);
+            append("BEGIN " + file.getFileID() + " " + file.getFileSizeLength() + " " + file.getFileID() + "-" + file.getFileName(), false);
+            append("COMPLETE " + file.getFileID() + " " + paths.get(i), false);
+        }
+        //  the archive is deleted after this, on replay the batch is dropped like any deleted file
+        append("COMPLETE " + batchID + " " + archive);
+        checkpoints.remove(batchID);
+    }
+
+    /**
+     * Writes one entry and syncs the journal, entries are rare enough to sync each one.
+     * @param entry the entry without line end.
+     */
+    private void append(String entry) {
+        append(entry, true);
+    }
+
+    /**
+     * Writes one entry.
+     * @param entry the entry without line end.
+     * @param sync true to sync the journal after it.
+     */
+    private void append(String entry, boolean sync) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.write(entry);
+            out.write('\n');
+            if (sync) {
+                out.flush();
+                stream.getFD().sync();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes the journal.
+     */
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package server;
+
+import data.DataClient;
+import data.DataFileServer;
+import data.DataWriter;
+
+/**
+ * TransferListener is notified about uploads handled by the FileServer, so a monitor
+ * can show their progress. The methods are called on Netty threads and must return quickly.
+ */
+public interface TransferListener {
+
+    /**
+     * Called after a client started an upload.
+     * @param client the DataClient sending the file.
+     * @param fileID the ID of the file.
+     * @param writer the DataWriter receiving the file.
+     */
+    void transferStarted(DataClient client, long fileID, DataWriter writer);
+
+    /**
+     * Called after a chunk of an upload was written.
+     * @param client the DataClient sending the file.
+     * @param fileID the ID of the file.
+     * @param writer the DataWriter receiving the file.
+     */
+    void transferProgress(DataClient client, long fileID, DataWriter writer);
+
+    /**
+     * Called after an upload was completed and added to the list of files.
+     * @param client the DataClient that sent the file.
+     * @param file the DataFileServer object representing the stored file.
+     */
+    void transferFinished(DataClient client, DataFileServer file);
+
+    /**
+     * Called after an upload ended without being stored, given up by its client or failed
+     * to be stored.
+     * @param client the DataClient that sent the file.
+     * @param fileID the ID of the file.
+     */
+    void transferAborted(DataClient client, long fileID);
+}
@@ -0,0 +1,153 @@
+package server;
+
+import com.corundumstudio.socketio.Configuration;
+import com.corundumstudio.socketio.SocketIOServer;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.bootstrap.ServerBootstrapConfig;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.MultithreadEventExecutorGroup;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import java.util.Map;
+
+/**
+ * TunedSocketIOServer is a SocketIOServer started with the transport, buffer and socket
+ * options of a ServerConfig. netty-socketio leaves the buffer allocator of accepted
+ * connections to Netty, so it is set here on the bootstrap. Once the server is bound the
+ * options Netty was actually given are kept as a report, so a host can be tuned from what
+ * was applied rather than from what was asked for.
+ */
+public class TunedSocketIOServer extends SocketIOServer {
+
+    public static final String TRANSPORT_AUTO = "auto";
+    public static final String TRANSPORT_EPOLL = "epoll";
+    public static final String TRANSPORT_NIO = "nio";
+
+    private final ByteBufAllocator allocator;
+    private final boolean direct;
+    private final String transportNote;
+    private volatile String report = "not started";
+    private volatile EventLoopGroup bossGroup;
+    private volatile EventLoopGroup workerGroup;
+
+    /**
+     * Builds the netty-socketio configuration from the server settings and creates the server.
+     * @param configuration the configuration with the port, frame and ack settings already set.
+     * @param config the server settings.
+     */
+    public TunedSocketIOServer(Configuration configuration, ServerConfig config) {
+        this(apply(configuration, config), config, transportNote(config));
+    }
+
+    private TunedSocketIOServer(Configuration configuration, ServerConfig config, String transportNote) {
+        super(configuration);
+        direct = config.isDirectBuffers();
+        if (config.isPooledBuffers()) {
+            allocator = direct ? PooledByteBufAllocator.DEFAULT : new PooledByteBufAllocator(false);
+        } else {
+            allocator = new UnpooledByteBufAllocator(direct);
+        }
+        this.transportNote = transportNote;
+    }
+
+    public String getReport() {
+        return report;
+    }
+
+    /**
+     * @return the tasks waiting on the boss and worker event loops, 0 before the server is bound.
+     */
+    public int getPendingTasks() {
+        return pendingTasks(bossGroup) + pendingTasks(workerGroup);
+    }
+
+    private int pendingTasks(EventLoopGroup group) {
+        int pending = 0;
+        if (group != null) {
+            for (EventExecutor loop : group) {
+                if (loop instanceof SingleThreadEventExecutor) {
+                    pending += ((SingleThreadEventExecutor) loop).pendingTasks();
+                }
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Copies the transport, thread, buffer and socket settings into a netty-socketio configuration.
+     * The epoll transport is only used when its native library loads, otherwise NIO is used.
+     * @param configuration the netty-socketio configuration.
+     * @param config the server settings.
+     * @return the same configuration.
+     */
+    private static Configuration apply(Configuration configuration, ServerConfig config) {
+        configuration.setBossThreads(config.getBossThreads());
+        configuration.setWorkerThreads(config.getWorkerThreads());
+        configuration.setUseLinuxNativeEpoll(useEpoll(config));
+        configuration.setPreferDirectBuffer(config.isDirectBuffers());
+        configuration.getSocketConfig().setTcpNoDelay(config.isTcpNoDelay());
+        //  netty-socketio leaves the OS default in place for -1
+        configuration.getSocketConfig().setTcpSendBufferSize(config.getSendBuffer() > 0 ? config.getSendBuffer() : -1);
+        configuration.getSocketConfig().setTcpReceiveBufferSize(config.getReceiveBuffer() > 0 ? config.getReceiveBuffer() : -1);
+        configuration.getSocketConfig().setAcceptBackLog(config.getBacklog());
+        configuration.getSocketConfig().setTcpKeepAlive(config.isTcpKeepAlive());
+        configuration.getSocketConfig().setReuseAddress(config.isReuseAddress());
+        return configuration;
+    }
+
+    private static boolean useEpoll(ServerConfig config) {
+        return !TRANSPORT_NIO.equals(config.getTransport()) && Epoll.isAvailable();
+    }
+
+    private static String transportNote(ServerConfig config) {
+        if (TRANSPORT_EPOLL.equals(config.getTransport()) && !Epoll.isAvailable()) {
+            return " (epoll requested but unavailable: " + Epoll.unavailabilityCause() + ")";
+        }
+        return "";
+    }
+
+    @Override
+    protected void applyConnectionOptions(ServerBootstrap bootstrap) {
+        super.applyConnectionOptions(bootstrap);
+        bootstrap.childOption(ChannelOption.ALLOCATOR, allocator);
+        bossGroup = bootstrap.config().group();
+        workerGroup = bootstrap.config().childGroup();
+        report = describe(bootstrap.config());
+    }
+
+    /**
+     * Describes the transport, event loops and options a bootstrap was configured with.
+     * @param applied the configuration of the bootstrap about to be bound.
+     * @return a one line per setting report.
+     */
+    private String describe(ServerBootstrapConfig applied) {
+        StringBuilder text = new StringBuilder();
+        text.append("transport: ").append(applied.channelFactory()).append(transportNote).append('\n');
+        text.append("boss threads: ").append(threads(applied.group())).append('\n');
+        text.append("worker threads: ").append(threads(applied.childGroup())).append('\n');
+        text.append("allocator: ").append(allocator.getClass().getSimpleName())
+                .append(direct ? " (direct)" : " (heap)").append('\n');
+        text.append("max frame payload: ").append(getConfiguration().getMaxFramePayloadLength()).append('\n');
+        for (Map.Entry<ChannelOption<?>, Object> option : applied.options().entrySet()) {
+            text.append("server ").append(option.getKey()).append(": ").append(option.getValue()).append('\n');
+        }
+        for (Map.Entry<ChannelOption<?>, Object> option : applied.childOptions().entrySet()) {
+            if (option.getKey() != ChannelOption.ALLOCATOR) {
+                text.append("child ").append(option.getKey()).append(": ").append(option.getValue()).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    private String threads(EventLoopGroup group) {
+        if (group instanceof MultithreadEventExecutorGroup) {
+            return String.valueOf(((MultithreadEventExecutorGroup) group).executorCount());
+        }
+        return group.getClass().getSimpleName();
+    }
+}
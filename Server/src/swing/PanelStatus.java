@@ -7,13 +7,13 @@ public class PanelStatus extends javax.swing.JLayeredPane {
     /**
      * Creates new form PanelStatus
      */
-    private final HashMap<Integer, PanelStatus_Item> list = new HashMap<>();
+    private final HashMap<Long, PanelStatus_Item> list = new HashMap<>();
 
     public PanelStatus() {
         initComponents();
     }
 
-    public void addItem(int fileID, String fileName, String fileSize) {
+    public void addItem(long fileID, String fileName, String fileSize) {
         PanelStatus_Item item = new PanelStatus_Item();
         item.setFile(fileName, fileSize);
         list.put(fileID, item);
@@ -22,8 +22,20 @@ public class PanelStatus extends javax.swing.JLayeredPane {
         this.revalidate();
     }
 
-    public void updateStatus(int fileID, int values) {
-        list.get(fileID).showStatus(values);
+    public void removeItem(long fileID) {
+        PanelStatus_Item item = list.remove(fileID);
+        if (item != null) {
+            this.remove(item);
+            this.repaint();
+            this.revalidate();
+        }
+    }
+
+    public void updateStatus(long fileID, int values) {
+        PanelStatus_Item item = list.get(fileID);
+        if (item != null) {
+            item.showStatus(values);
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -0,0 +1,262 @@
+package bench;
+
+import com.corundumstudio.socketio.SocketIOClient;
+import com.corundumstudio.socketio.protocol.Event;
+import data.ChunkFrame;
+import data.DataClient;
+import data.DataFileSending;
+import data.DataFileServer;
+import data.DataWriter;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import server.ChunkJsonSupport;
+import server.ClientRegistry;
+import server.DownloadEngine;
+
+/**
+ * ServerBenchmarks measures the hot paths of a transfer on the server: writing an uploaded
+ * chunk, reading a download chunk, decoding a chunk event sent as JSON or as a binary frame,
+ * and finding the writer of a chunk among many connected clients.
+ *
+ * It lives under test so it is left out of the jar. Build it with ant compile-test and run
+ * it with the Server jar, the test classes and the lib folder on the class path, for example
+ * java -cp "dist/Server.jar:build/test/classes:lib/*" bench.ServerBenchmarks --save=before.properties
+ * and compare a later build with --baseline=before.properties.
+ */
+public class ServerBenchmarks {
+
+    //  Larger than any chunk, small enough to stay in the page cache
+    private static final long FILE_SIZE = 64L * 1024 * 1024;
+    private static final int FILE_ID = 1;
+
+    /**
+     * @param args see Benchmark.runAll.
+     * @throws Exception if a benchmark fails.
+     */
+    public static void main(String[] args) throws Exception {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.add(new WriteChunk());
+        benchmarks.add(new ReadChunk());
+        benchmarks.add(new DecodeChunk("decode.json", false));
+        benchmarks.add(new DecodeChunk("decode.binary", true));
+        benchmarks.add(new SessionLookup());
+        Benchmark.runAll(benchmarks, args);
+    }
+
+    /**
+     * DataWriter.writeFile at offsets walking through the file, as uploads over several streams do.
+     */
+    private static class WriteChunk extends Benchmark {
+
+        private File file;
+        private DataWriter writer;
+        private byte[] data;
+        private long offset;
+
+        @Override
+        public String getName() {
+            return "write.chunk";
+        }
+
+        @Override
+        public void setUp(int param) throws Exception {
+            file = File.createTempFile("bench-write", ".bin");
+            writer = new DataWriter(file, FILE_SIZE);
+            data = new byte[param];
+            new Random(param).nextBytes(data);
+            offset = 0;
+        }
+
+        @Override
+        public Object run() throws Exception {
+            long written = writer.writeFile(data, offset);
+            offset += data.length;
+            if (offset + data.length > FILE_SIZE) {
+                offset = 0;
+            }
+            return written;
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            writer.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * DownloadEngine.read of consecutive chunks, the path request_file serves downloads from.
+     */
+    private static class ReadChunk extends Benchmark {
+
+        private final UUID session = UUID.randomUUID();
+        private File file;
+        private DownloadEngine engine;
+        private DataFileServer download;
+        private int chunkSize;
+        private long position;
+
+        @Override
+        public String getName() {
+            return "read.chunk";
+        }
+
+        @Override
+        public void setUp(int param) throws Exception {
+            file = File.createTempFile("bench-read", ".bin");
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                byte[] block = new byte[1024 * 1024];
+                new Random(param).nextBytes(block);
+                for (long written = 0; written < FILE_SIZE; written += block.length) {
+                    out.write(block);
+                }
+            }
+            engine = new DownloadEngine();
+            download = new DataFileServer(FILE_ID, file.getName(), DataWriter.convertFile(FILE_SIZE), FILE_SIZE, file);
+            chunkSize = param;
+            position = 0;
+        }
+
+        @Override
+        public Object run() throws Exception {
+            byte[] chunk = engine.read(session, download, position, chunkSize);
+            position += chunkSize;
+            if (position + chunkSize > FILE_SIZE) {
+                position = 0;
+            }
+            return chunk;
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            engine.closeAll();
+            file.delete();
+        }
+    }
+
+    /**
+     * ChunkJsonSupport.readValue of a chunk event. The JSON form is the sending event with
+     * DataFileSending going through databind, the binary form is the chunk event with a
+     * ChunkFrame read by the streaming parser. Both carry the payload inlined as base64, the
+     * way netty-socketio hands binary attachments to the decoder.
+     */
+    private static class DecodeChunk extends Benchmark {
+
+        private final String name;
+        private final boolean binary;
+        private final ChunkJsonSupport json = new ChunkJsonSupport();
+        private byte[] packet;
+
+        DecodeChunk(String name, boolean binary) {
+            this.name = name;
+            this.binary = binary;
+            json.addEventMapping("", "sending", DataFileSending.class);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void setUp(int param) throws Exception {
+            byte[] payload = new byte[param];
+            new Random(param).nextBytes(payload);
+            String text;
+            if (binary) {
+                byte[] frame = new byte[ChunkFrame.HEADER_SIZE + param];
+                ByteBuffer.wrap(frame).putLong(FILE_ID).putLong(0).putInt(param);
+                System.arraycopy(payload, 0, frame, ChunkFrame.HEADER_SIZE, param);
+                text = "[\"" + ChunkJsonSupport.CHUNK_EVENT + "\",\"" + Base64.getEncoder().encodeToString(frame) + "\"]";
+            } else {
+                text = "[\"sending\",{\"fileID\":" + FILE_ID + ",\"offset\":0,\"finish\":false,\"data\":\""
+                        + Base64.getEncoder().encodeToString(payload) + "\"}]";
+            }
+            packet = text.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Object run() throws Exception {
+            ByteBufInputStream in = new ByteBufInputStream(Unpooled.wrappedBuffer(packet));
+            return json.readValue("", in, Event.class);
+        }
+    }
+
+    /**
+     * ClientRegistry.get followed by DataClient.getWriter, the lookup every uploaded chunk makes.
+     */
+    private static class SessionLookup extends Benchmark {
+
+        private SocketIOClient[] sockets;
+        private ClientRegistry registry;
+        private int next;
+
+        @Override
+        public String getName() {
+            return "session.lookup";
+        }
+
+        @Override
+        public int[] getParams() {
+            return new int[]{1, 100, 10000};
+        }
+
+        @Override
+        public long getBytesPerOp(int param) {
+            return 0;
+        }
+
+        @Override
+        public void setUp(int param) throws Exception {
+            registry = new ClientRegistry();
+            sockets = new SocketIOClient[param];
+            for (int i = 0; i < param; i++) {
+                sockets[i] = socket(UUID.randomUUID());
+                registry.add(new DataClient(sockets[i], "client" + i));
+            }
+            next = 0;
+        }
+
+        @Override
+        public Object run() throws Exception {
+            DataClient client = registry.get(sockets[next]);
+            next = next + 1 == sockets.length ? 0 : next + 1;
+            return client.getWriter(FILE_ID) == null ? client : registry;
+        }
+
+        /**
+         * @param session the session UUID the socket reports.
+         * @return a socket that only knows its session, enough for the registry.
+         */
+        private static SocketIOClient socket(final UUID session) {
+            return (SocketIOClient) Proxy.newProxyInstance(SocketIOClient.class.getClassLoader(),
+                    new Class<?>[]{SocketIOClient.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "getSessionId":
+                            return session;
+                        case "hashCode":
+                            return session.hashCode();
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                }
+            });
+        }
+    }
+}